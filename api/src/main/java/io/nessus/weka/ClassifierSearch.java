@@ -0,0 +1,372 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.nessus.common.AssertArg;
+import io.nessus.common.AssertState;
+import io.nessus.weka.internal.CrossValidationFolds;
+import io.nessus.weka.internal.ParallelTasks;
+import io.nessus.weka.utils.DatasetUtils;
+import io.nessus.weka.utils.DatasetUtils.OperatorSpec;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * A grid or random search over the options of a classifier.
+ * 
+ * All candidates are cross-validated on the same folds, concurrently on a bounded 
+ * thread pool. A candidate is cancelled as soon as its accumulated loss exceeds 
+ * the final loss of a completed candidate, because it can no longer win. 
+ * The loss is the number of incorrect predictions for a nominal class and the 
+ * sum of squared errors for a numeric class.
+ * 
+ * <pre>
+ * ClassifierSearch.create("J48")
+ *     .option("-C", "0.1", "0.25", "0.5")
+ *     .option("-M", "1", "2", "5")
+ *     .run(dataset);
+ * </pre>
+ */
+public class ClassifierSearch {
+
+    private final String name;
+    private final Map<String, List<String>> values = new LinkedHashMap<>();
+    private final Map<String, double[]> ranges = new LinkedHashMap<>();
+    private final Set<String> integerRanges = new LinkedHashSet<>();
+    
+    private int numFolds = 10;
+    private long seed = 1;
+    private int numSamples;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    
+    private ClassifierSearch(String name) {
+        AssertArg.notNull(name, "Null name");
+        this.name = name;
+    }
+    
+    public static ClassifierSearch create(String name) {
+        return new ClassifierSearch(name);
+    }
+
+    /**
+     * Add the values for an option. An empty value adds the flag without an argument.
+     */
+    public ClassifierSearch option(String flag, String... values) {
+        AssertArg.notNull(flag, "Null flag");
+        AssertArg.isTrue(values.length > 0, "No values for: " + flag);
+        this.values.put(flag, new ArrayList<>(Arrays.asList(values)));
+        return this;
+    }
+    
+    /**
+     * Add a uniform distribution of values for an option. Ranges require random search.
+     */
+    public ClassifierSearch range(String flag, double min, double max) {
+        AssertArg.notNull(flag, "Null flag");
+        AssertArg.isTrue(min <= max, "Invalid range: " + min + ".." + max);
+        ranges.put(flag, new double[] { min, max });
+        integerRanges.remove(flag);
+        return this;
+    }
+    
+    /**
+     * Add a uniform distribution of integer values for an option, including the bounds.
+     */
+    public ClassifierSearch range(String flag, int min, int max) {
+        range(flag, (double) min, (double) max);
+        integerRanges.add(flag);
+        return this;
+    }
+    
+    public ClassifierSearch folds(int numFolds) {
+        AssertArg.isTrue(numFolds > 1, "Invalid number of folds: " + numFolds);
+        this.numFolds = numFolds;
+        return this;
+    }
+    
+    public ClassifierSearch seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+    
+    /**
+     * Evaluate the given number of random candidates instead of the full grid.
+     */
+    public ClassifierSearch random(int numSamples) {
+        AssertArg.isTrue(numSamples > 0, "Invalid number of samples: " + numSamples);
+        this.numSamples = numSamples;
+        return this;
+    }
+    
+    /**
+     * Set the maximum number of candidates that are evaluated concurrently.
+     */
+    public ClassifierSearch parallelism(int parallelism) {
+        AssertArg.isTrue(parallelism > 0, "Invalid parallelism: " + parallelism);
+        this.parallelism = parallelism;
+        return this;
+    }
+    
+    /**
+     * Get the classifier specs of all candidates.
+     */
+    public List<String> candidates() {
+        
+        if (numSamples == 0) {
+            AssertState.isTrue(ranges.isEmpty(), "Ranges require random search");
+            List<String> specs = new ArrayList<>();
+            specs.add(name);
+            for (Map.Entry<String, List<String>> me : values.entrySet()) {
+                List<String> next = new ArrayList<>();
+                for (String spec : specs) {
+                    for (String val : me.getValue()) {
+                        next.add(spec + option(me.getKey(), val));
+                    }
+                }
+                specs = next;
+            }
+            return specs;
+        }
+        
+        Random random = new Random(seed);
+        Set<String> specs = new LinkedHashSet<>();
+        for (int i = 0; i < 10 * numSamples && specs.size() < numSamples; i++) {
+            StringBuilder spec = new StringBuilder(name);
+            for (Map.Entry<String, List<String>> me : values.entrySet()) {
+                List<String> vals = me.getValue();
+                spec.append(option(me.getKey(), vals.get(random.nextInt(vals.size()))));
+            }
+            for (Map.Entry<String, double[]> me : ranges.entrySet()) {
+                String flag = me.getKey();
+                double min = me.getValue()[0];
+                double max = me.getValue()[1];
+                if (integerRanges.contains(flag)) {
+                    spec.append(option(flag, String.valueOf((int) min + random.nextInt((int) max - (int) min + 1))));
+                } else {
+                    spec.append(option(flag, String.valueOf(min + (max - min) * random.nextDouble())));
+                }
+            }
+            specs.add(spec.toString());
+        }
+        return new ArrayList<>(specs);
+    }
+    
+    public Result run(Dataset dataset) {
+        AssertArg.notNull(dataset, "Null dataset");
+        return run(dataset.getInstances());
+    }
+    
+    public Result run(Instances data) {
+        AssertArg.notNull(data, "Null data");
+        AssertState.isTrue(data.classIndex() >= 0, "Class index not set");
+        
+        List<String> specs = candidates();
+        
+        // All candidates use the same folds
+        CrossValidationFolds folds = new CrossValidationFolds(data, numFolds, new Random(seed));
+        
+        boolean nominal = data.classAttribute().isNominal();
+        Bound bound = new Bound();
+        List<Candidate> candidates = new ArrayList<>();
+        
+        // Candidates share the header of the folds
+        int threads = ParallelTasks.canShare(data) ? Math.min(parallelism, specs.size()) : 1;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Candidate>> futures = new ArrayList<>();
+            for (int i = 0; i < specs.size(); i++) {
+                Candidate candidate = new Candidate(i, specs.get(i));
+                futures.add(executor.submit(() -> evaluate(candidate, data, folds, nominal, bound)));
+            }
+            for (Future<Candidate> future : futures) {
+                candidates.add(future.get());
+            }
+        } catch (ExecutionException ex) {
+            throw UncheckedException.create(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw UncheckedException.create(ex);
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        // Completed candidates by error rate, followed by the cancelled ones
+        candidates.sort(Comparator.comparing((Candidate c) -> c.cancelled)
+                .thenComparingDouble(c -> c.cancelled ? 0.0 : c.getErrorRate())
+                .thenComparingInt(c -> c.index));
+        
+        Classifier classifier = DatasetUtils.buildClassifier(data, operatorSpec(candidates.get(0).spec));
+        return new Result(candidates, classifier);
+    }
+    
+    private Candidate evaluate(Candidate candidate, Instances data, CrossValidationFolds folds, boolean nominal, Bound bound) throws Exception {
+        
+        Classifier template = DatasetUtils.createClassifier(operatorSpec(candidate.spec));
+        Evaluation evaluation = new Evaluation(data);
+        
+        for (int i = 0; i < numFolds; i++) {
+            Classifier classifier = folds.buildClassifier(template, i);
+            folds.evaluate(evaluation, classifier, i);
+            candidate.numFolds = i + 1;
+            
+            if (i + 1 < numFolds && loss(evaluation, nominal) > bound.get()) {
+                candidate.cancelled = true;
+                return candidate;
+            }
+        }
+        
+        candidate.evaluation = evaluation;
+        bound.update(loss(evaluation, nominal));
+        return candidate;
+    }
+    
+    private static double loss(Evaluation evaluation, boolean nominal) {
+        if (nominal) {
+            return evaluation.incorrect();
+        }
+        double rmse = evaluation.rootMeanSquaredError();
+        return rmse * rmse * (evaluation.withClass() - evaluation.unclassified());
+    }
+    
+    // Values with whitespace or quotes are quoted, so that the spec can be split again 
+    private static String option(String flag, String value) {
+        return " " + Utils.joinOptions(new String[] { flag, value });
+    }
+    
+    private static OperatorSpec operatorSpec(String spec) {
+        int idx = spec.indexOf(' ');
+        if (idx < 0) 
+            return new OperatorSpec(spec, new String[0]);
+        try {
+            return new OperatorSpec(spec.substring(0, idx), Utils.splitOptions(spec.substring(idx + 1)));
+        } catch (Exception ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+    
+    public static class Candidate {
+        
+        private final int index;
+        private final String spec;
+        private Evaluation evaluation;
+        private boolean cancelled;
+        private int numFolds;
+        
+        Candidate(int index, String spec) {
+            this.index = index;
+            this.spec = spec;
+        }
+
+        public String getSpec() {
+            return spec;
+        }
+
+        /**
+         * Get the cross-validation result or null if the candidate was cancelled.
+         */
+        public Evaluation getEvaluation() {
+            return evaluation;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Get the number of folds that were evaluated.
+         */
+        public int getNumFolds() {
+            return numFolds;
+        }
+        
+        public double getErrorRate() {
+            return evaluation != null ? evaluation.errorRate() : Double.NaN;
+        }
+        
+        public String toString() {
+            return String.format("%s [error=%.4f,folds=%d%s]", spec, getErrorRate(), numFolds, cancelled ? ",cancelled" : "");
+        }
+    }
+    
+    public static class Result {
+        
+        private final List<Candidate> ranking;
+        private final Classifier classifier;
+        
+        Result(List<Candidate> ranking, Classifier classifier) {
+            this.ranking = ranking;
+            this.classifier = classifier;
+        }
+
+        /**
+         * Get the candidates ordered by error rate, followed by the cancelled ones.
+         */
+        public List<Candidate> getRanking() {
+            return ranking;
+        }
+
+        public Candidate getBest() {
+            return ranking.get(0);
+        }
+
+        /**
+         * Get the best classifier, built on the full dataset.
+         */
+        public Classifier getClassifier() {
+            return classifier;
+        }
+        
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            ranking.forEach(c -> result.append(c).append("\n"));
+            return result.toString();
+        }
+    }
+    
+    // The lowest loss of a completed candidate
+    private static class Bound {
+        
+        private double value = Double.POSITIVE_INFINITY;
+        
+        synchronized double get() {
+            return value;
+        }
+        
+        synchronized void update(double loss) {
+            value = Math.min(value, loss);
+        }
+    }
+}
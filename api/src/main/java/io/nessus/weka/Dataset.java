@@ -22,9 +22,15 @@ package io.nessus.weka;
 import java.io.InputStream;
 import java.net.URL;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
 
 import io.nessus.weka.internal.DatasetImpl;
 import io.nessus.weka.utils.DatasetUtils;
+import io.nessus.weka.utils.ReadOptions;
+import weka.core.Instance;
 import weka.core.Instances;
 
 public abstract class Dataset implements FunctionalEvaluation<Dataset>, FunctionalClassifier<Dataset>, FunctionalInstances<Dataset> {
@@ -37,6 +43,26 @@ public abstract class Dataset implements FunctionalEvaluation<Dataset>, Function
         return create(DatasetUtils.read(inpath));
     }
 
+    public static Dataset create(String inpath, ReadOptions options) {
+        return create(DatasetUtils.read(inpath, options));
+    }
+
+    public static Dataset create(Path inpath, ReadOptions options) {
+        return create(DatasetUtils.read(inpath, options));
+    }
+
+    public static Dataset create(String inpath, StorageMode storageMode) {
+        return create(DatasetUtils.read(inpath), storageMode);
+    }
+
+    public static Dataset create(Path inpath, StorageMode storageMode) {
+        return create(DatasetUtils.read(inpath), storageMode);
+    }
+
+    public static Dataset create(Path indir, String glob) {
+        return create(DatasetUtils.read(indir, glob));
+    }
+
     public static Dataset create(URL inurl) {
         return create(DatasetUtils.read(inurl));
     }
@@ -48,4 +74,32 @@ public abstract class Dataset implements FunctionalEvaluation<Dataset>, Function
     public static Dataset create(Instances instances) {
         return new DatasetImpl(instances);
     }
+
+    public static Dataset create(Instances instances, StorageMode storageMode) {
+        return new DatasetImpl(instances, storageMode);
+    }
+
+    public static CompletableFuture<Dataset> createAsync(String inpath) {
+        return createAsync(Paths.get(inpath), DatasetUtils.getIOExecutor());
+    }
+
+    public static CompletableFuture<Dataset> createAsync(Path inpath) {
+        return createAsync(inpath, DatasetUtils.getIOExecutor());
+    }
+
+    public static CompletableFuture<Dataset> createAsync(Path inpath, Executor executor) {
+        return DatasetUtils.readAsync(inpath, executor).thenApply((Instances instances) -> create(instances));
+    }
+
+    public static Stream<Instance> stream(String inpath) {
+        return DatasetUtils.stream(inpath);
+    }
+
+    public static Stream<Instance> stream(Path inpath) {
+        return DatasetUtils.stream(inpath);
+    }
+
+    public static Stream<Instance> stream(InputStream input) {
+        return DatasetUtils.stream(input);
+    }
 }
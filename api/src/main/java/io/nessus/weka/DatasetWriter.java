@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import io.nessus.common.AssertArg;
+import io.nessus.common.AssertState;
+import io.nessus.weka.utils.DatasetUtils;
+import weka.core.AbstractInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.AbstractFileSaver;
+import weka.core.converters.ArffSaver;
+import weka.core.converters.CSVSaver;
+import weka.core.converters.Saver;
+
+/**
+ * Writes instances to an ARFF or CSV file one at a time.
+ * 
+ * The header is written once, after that instances can be written individually 
+ * or in batches without holding the full result in memory. In append mode, the 
+ * instances are added to the end of an existing file with a compatible header.
+ */
+public class DatasetWriter implements Closeable {
+
+    private final Path outpath;
+    private final Instances header;
+    private final boolean csv;
+    
+    private AbstractFileSaver saver;
+    private BufferedWriter appender;
+    private boolean closed;
+    
+    private DatasetWriter(Path outpath, Instances header, boolean append) {
+        AssertArg.notNull(outpath, "Null outpath");
+        AssertArg.notNull(header, "Null header");
+        
+        String fileName = outpath.getFileName().toString();
+        AssertArg.isTrue(fileName.endsWith(".arff") || fileName.endsWith(".csv"), "Unsupported file type: " + outpath);
+        
+        this.outpath = outpath;
+        this.header = new Instances(header, 0);
+        this.csv = fileName.endsWith(".csv");
+        
+        try {
+            
+            Path parent = outpath.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            
+            if (append && Files.exists(outpath) && Files.size(outpath) > 0) {
+                appender = openAppender();
+            } else {
+                saver = csv ? new CSVSaver() : new ArffSaver();
+                saver.setRetrieval(Saver.INCREMENTAL);
+                saver.setInstances(this.header);
+                saver.setFile(outpath.toFile());
+            }
+            
+        } catch (IOException ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+    
+    /**
+     * Create a writer that replaces the given file.
+     */
+    public static DatasetWriter create(Path outpath, Instances header) {
+        return new DatasetWriter(outpath, header, false);
+    }
+    
+    /**
+     * Create a writer that appends to the given file, which is created if it does not exist.
+     */
+    public static DatasetWriter append(Path outpath, Instances header) {
+        return new DatasetWriter(outpath, header, true);
+    }
+    
+    public Path getPath() {
+        return outpath;
+    }
+    
+    public DatasetWriter write(Instance instance) {
+        AssertArg.notNull(instance, "Null instance");
+        AssertState.isFalse(closed, "Writer closed: " + outpath);
+        try {
+            if (appender != null) {
+                appender.write(format(instance));
+                appender.newLine();
+            } else {
+                saver.writeIncremental(instance);
+            }
+        } catch (IOException ex) {
+            throw UncheckedException.create(ex);
+        }
+        return this;
+    }
+    
+    public DatasetWriter write(Iterable<Instance> batch) {
+        AssertArg.notNull(batch, "Null batch");
+        for (Instance inst : batch) {
+            write(inst);
+        }
+        return this;
+    }
+    
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            if (appender != null) {
+                appender.close();
+            } else {
+                // Writes the header in case there were no instances
+                saver.writeIncremental(null);
+            }
+        } catch (IOException ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+    
+    /**
+     * Format the given instance like the savers do. CSV rows only contain the field values, 
+     * without weights or sparse syntax. Nominal and string values are quoted where necessary.
+     */
+    private String format(Instance instance) {
+        if (instance.dataset() == null) {
+            instance = (Instance) instance.copy();
+            instance.setDataset(header);
+        }
+        if (!csv) {
+            return instance.toString();
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < instance.numAttributes(); i++) {
+            if (i > 0) result.append(',');
+            if (instance.isMissing(i)) {
+                result.append('?');
+            } else {
+                result.append(instance.toString(i, AbstractInstance.s_numericAfterDecimalPoint));
+            }
+        }
+        return result.toString();
+    }
+    
+    private BufferedWriter openAppender() throws IOException {
+        
+        Instances existing;
+        try (InputStream input = Files.newInputStream(outpath)) {
+            existing = DatasetUtils.readStructure(input);
+        }
+        
+        // CSV nominal labels are inferred from the data, only names must match  
+        if (csv) {
+            AssertArg.isEqual(header.numAttributes(), existing.numAttributes(), "Incompatible number of attributes: " + outpath);
+            for (int i = 0; i < header.numAttributes(); i++) {
+                String name = header.attribute(i).name();
+                AssertArg.isEqual(name, existing.attribute(i).name(), "Incompatible attribute names: " + outpath);
+            }
+        } else {
+            existing.setClassIndex(header.classIndex());
+            String msg = header.equalHeadersMsg(existing);
+            AssertArg.isNull(msg, "Incompatible headers: " + msg);
+        }
+        
+        boolean newline;
+        try (RandomAccessFile raf = new RandomAccessFile(outpath.toFile(), "r")) {
+            raf.seek(raf.length() - 1);
+            newline = raf.read() == '\n';
+        }
+        
+        BufferedWriter writer = Files.newBufferedWriter(outpath, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        if (!newline) writer.newLine();
+        return writer;
+    }
+}
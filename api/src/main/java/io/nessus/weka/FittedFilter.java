@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import io.nessus.common.AssertArg;
+import io.nessus.weka.utils.DatasetUtils;
+import io.nessus.weka.utils.DatasetUtils.OperatorSpec;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.Filter;
+
+/**
+ * A filter that is fitted once on a training dataset and then applied to other 
+ * datasets or single instances with the statistics of the training data.
+ * 
+ * A fitted filter is thread-safe. Every call uses a copy of the fitted filter 
+ * from a pool, which grows with the number of concurrent callers.
+ */
+public class FittedFilter {
+
+    private final Filter fitted;
+    private final Instances inputFormat;
+    private final Instances outputFormat;
+    private final Queue<Filter> pool = new ConcurrentLinkedQueue<>();
+    
+    private FittedFilter(Filter fitted, Instances inputFormat, Instances outputFormat) {
+        this.fitted = fitted;
+        this.inputFormat = inputFormat;
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * Fit the given filter on the given training instances.
+     */
+    public static FittedFilter fit(Instances training, String filterSpec) {
+        AssertArg.notNull(training, "Null training");
+        AssertArg.notNull(filterSpec, "Null filterSpec");
+        
+        Filter filter = DatasetUtils.createFilter(new OperatorSpec(filterSpec));
+        try {
+            filter.setInputFormat(training);
+            Instances output = Filter.useFilter(training, filter);
+            return new FittedFilter(filter, new Instances(training, 0), new Instances(output, 0));
+        } catch (Exception ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+
+    /**
+     * Fit the given filter on the current instances of the given dataset.
+     */
+    public static FittedFilter fit(Dataset training, String filterSpec) {
+        AssertArg.notNull(training, "Null training");
+        return fit(training.getInstances(), filterSpec);
+    }
+    
+    public Instances getInputFormat() {
+        return new Instances(inputFormat, 0);
+    }
+
+    public Instances getOutputFormat() {
+        return new Instances(outputFormat, 0);
+    }
+
+    /**
+     * Apply the fitted filter to the given instances.
+     */
+    public Instances apply(Instances instances) {
+        AssertArg.notNull(instances, "Null instances");
+        
+        String msg = inputFormat.equalHeadersMsg(instances);
+        AssertArg.isTrue(msg == null, "Incompatible instances: " + msg);
+        
+        Filter filter = borrow();
+        try {
+            Instances result = Filter.useFilter(instances, filter);
+            pool.offer(filter);
+            return result;
+        } catch (Exception ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+
+    /**
+     * Apply the fitted filter to the current instances of the given dataset.
+     */
+    public Dataset apply(Dataset dataset) {
+        AssertArg.notNull(dataset, "Null dataset");
+        return dataset.apply(this);
+    }
+    
+    /**
+     * Apply the fitted filter to the given instance.
+     * @return the filtered instance or null if the filter removed it
+     */
+    public Instance apply(Instance instance) {
+        AssertArg.notNull(instance, "Null instance");
+        
+        if (instance.dataset() != null) {
+            String msg = inputFormat.equalHeadersMsg(instance.dataset());
+            AssertArg.isTrue(msg == null, "Incompatible instance: " + msg);
+        } else {
+            AssertArg.isEqual(inputFormat.numAttributes(), instance.numAttributes(), "Unexpected number of attributes");
+            instance = (Instance) instance.copy();
+            instance.setDataset(inputFormat);
+        }
+        
+        Filter filter = borrow();
+        try {
+            filter.input(instance);
+            filter.batchFinished();
+            Instance result = filter.output();
+            pool.offer(filter);
+            return result;
+        } catch (Exception ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+    
+    private Filter borrow() {
+        Filter filter = pool.poll();
+        if (filter == null) {
+            try {
+                filter = Filter.makeCopy(fitted);
+            } catch (Exception ex) {
+                throw UncheckedException.create(ex);
+            }
+        }
+        return filter;
+    }
+}
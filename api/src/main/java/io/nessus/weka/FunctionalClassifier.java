@@ -19,6 +19,7 @@
  */
 package io.nessus.weka;
 
+import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -38,6 +39,17 @@ public interface FunctionalClassifier<T extends Dataset> {
     
     T buildClassifier(String classifierSpec);
     
+    /**
+     * Build the best classifier found by the given search.
+     */
+    T buildClassifier(ClassifierSearch search);
+    
+    /**
+     * Build the given classifiers concurrently on the current instances.
+     * @return the classifiers by spec, in the given order
+     */
+    Map<String, Classifier> buildClassifiers(String... classifierSpecs);
+    
     Classifier getClassifier();
 
 }
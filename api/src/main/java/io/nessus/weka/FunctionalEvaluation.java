@@ -35,6 +35,11 @@ public interface FunctionalEvaluation<T extends Dataset> {
 
     T crossValidateModel(int numFolds, int seed);
 
+    /**
+     * Cross-validate the model with the fold classifiers built in parallel.
+     */
+    T crossValidateModel(int numFolds, int seed, boolean parallel);
+
     T evaluateModel(T dataset);
 
     T evaluateModel();
@@ -22,10 +22,13 @@ package io.nessus.weka;
 import java.net.URL;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 
+import io.nessus.weka.utils.SlotStore;
 import weka.core.Attribute;
 import weka.core.Instances;
 
@@ -41,6 +44,10 @@ public interface FunctionalInstances<T extends Dataset> {
 
     T write(String outpath);
 
+    CompletableFuture<T> writeAsync(Path outpath);
+
+    CompletableFuture<T> writeAsync(Path outpath, Executor executor);
+
     T push();
     
     T pushTrainingSet();
@@ -59,6 +66,56 @@ public interface FunctionalInstances<T extends Dataset> {
     
     T apply(String filterSpec);
 
+    /**
+     * Apply a filter that was fitted on a training dataset.
+     */
+    T apply(FittedFilter filter);
+
+    /**
+     * In lazy mode, filters are only recorded by apply() and run once their result is needed. 
+     * Consecutive streamable filters then run in a single pass over the instances.
+     * Leaving lazy mode applies the pending filters.
+     */
+    T lazy(boolean lazy);
+
+    /**
+     * In parallel mode, streamable filters run on chunks of a large dataset in parallel.
+     */
+    T parallel(boolean parallel);
+
+    /**
+     * Convert to sparse instances whenever the fraction of zero values is at least the given threshold.
+     * A threshold greater than 1.0 disables the conversion.
+     */
+    T autoSparse(double threshold);
+
+    /**
+     * Convert to sparse instances.
+     */
+    T toSparse();
+
+    /**
+     * Convert to dense instances in the storage of this dataset.
+     */
+    T toDense();
+
+    /**
+     * Get a view of the given rows that shares the attribute values with this dataset.
+     */
+    T rows(int[] indices);
+
+    /**
+     * Randomly split into a training set of the given ratio and a test set.
+     * @return the training set followed by the test set
+     */
+    List<T> split(double ratio, long seed);
+
+    /**
+     * Split into the given (one based) test fold of a stratified partition and the remaining training set.
+     * @return the training set followed by the test set
+     */
+    List<T> stratifiedSplit(int numFolds, int fold);
+
     T applyToInstances(UnaryOperator<Instances> operator);
 
     T applyToInstances(Function<T, Instances> function);
@@ -70,4 +127,9 @@ public interface FunctionalInstances<T extends Dataset> {
     List<Attribute> getAttributes();
 
     Instances getInstances();
+
+    /**
+     * Get the store of the named slots, which also provides the resident and spilled metrics.
+     */
+    SlotStore getSlotStore();
 }
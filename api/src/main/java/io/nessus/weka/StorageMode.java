@@ -0,0 +1,50 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka;
+
+/**
+ * The storage used for the attribute values of a {@link Dataset}.
+ */
+public enum StorageMode {
+    
+    /**
+     * Weka's default storage with an array of values per instance.
+     */
+    HEAP, 
+    
+    /**
+     * Column-major storage in direct memory outside of the Java heap.
+     */
+    OFF_HEAP,
+    
+    /**
+     * Like {@link #OFF_HEAP}, but with a narrow type per column. 
+     * 
+     * Numeric values are stored as float and lose precision beyond that. 
+     * Nominal values are stored as byte or short codes with a bitset for 
+     * missing values. Other attribute types are stored as double.
+     * Values are widened to double when they are read.
+     */
+    COMPACT;
+    
+    public boolean isColumnar() {
+        return this != HEAP;
+    }
+}
@@ -0,0 +1,367 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.nessus.common.AssertArg;
+import io.nessus.common.AssertState;
+import io.nessus.weka.UncheckedException;
+import io.nessus.weka.utils.ReadOptions;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A compact binary dataset format for fast reload.
+ * 
+ * The file starts with the header and attribute metadata, followed by one 
+ * block of doubles per attribute (column-major) and an optional block of 
+ * instance weights. All values are little endian. 
+ * 
+ * Reading maps the blocks of the kept attributes and wraps them in a column 
+ * store without copying the values. A file is written to a temporary file 
+ * first and then moved into place, so that instances mapped from the 
+ * previous version stay valid.
+ */
+public final class BinaryFormat {
+
+    public static final String EXTENSION = ".nwd";
+    
+    private static final int MAGIC = 0x4E574431; // NWD1
+    private static final int VERSION = 2;
+    
+    // Magic, version and data offset
+    private static final int PREFIX_LENGTH = 16;
+    
+    // Max size of a single mapped region
+    private static final long MAX_REGION_SIZE = 1L << 30;
+    
+    // Hide ctor
+    private BinaryFormat() {
+    }
+    
+    public static boolean isBinaryFormat(Path path) {
+        return path.getFileName().toString().endsWith(EXTENSION);
+    }
+    
+    public static void write(Instances instances, Path outpath) {
+        AssertArg.notNull(instances, "Null instances");
+        AssertArg.notNull(outpath, "Null outpath");
+        try {
+            
+            Path parent = outpath.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            
+            Path tmpfile = Files.createTempFile(parent, outpath.getFileName().toString(), ".tmp");
+            try {
+                writeFile(instances, tmpfile);
+                try {
+                    Files.move(tmpfile, outpath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(tmpfile, outpath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmpfile);
+            }
+            
+        } catch (IOException ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+
+    public static Instances read(Path inpath) {
+        return read(inpath, null, true);
+    }
+
+    public static Instances read(Path inpath, ReadOptions options) {
+        return read(inpath, options, true);
+    }
+
+    /**
+     * Read the given binary dataset, skipping the blocks of dropped attributes.
+     * @param mapped false to copy the values to the heap
+     */
+    public static Instances read(Path inpath, ReadOptions options, boolean mapped) {
+        AssertArg.notNull(inpath, "Null inpath");
+        try (FileChannel channel = FileChannel.open(inpath, StandardOpenOption.READ)) {
+            
+            ByteBuffer prefix = readBytes(channel, 0, PREFIX_LENGTH);
+            AssertState.isEqual(MAGIC, prefix.getInt(), "Not a binary dataset: " + inpath);
+            AssertState.isEqual(VERSION, prefix.getInt(), "Unsupported binary dataset version: " + inpath);
+            long dataOffset = prefix.getLong();
+            AssertState.isTrue(dataOffset >= PREFIX_LENGTH && dataOffset <= channel.size(), "Invalid binary dataset: " + inpath);
+            
+            Header header = readHeader(readBytes(channel, PREFIX_LENGTH, (int) (dataOffset - PREFIX_LENGTH)));
+            
+            int numInstances = header.numInstances;
+            int numAttributes = header.structure.numAttributes();
+            
+            long columnSize = (long) numInstances * Double.BYTES;
+            long length = dataOffset + (numAttributes + (header.weighted ? 1 : 0)) * columnSize;
+            AssertState.isTrue(channel.size() >= length, "Truncated binary dataset: " + inpath);
+            
+            Projection projection = new Projection(header.structure, options);
+            int[] sourceIndices = projection.getSourceIndices();
+            
+            // Only the blocks of kept attributes are read
+            ByteBuffer[][] columns = new ByteBuffer[sourceIndices.length][];
+            for (int i = 0; i < sourceIndices.length; i++) {
+                long offset = dataOffset + sourceIndices[i] * columnSize;
+                columns[i] = readColumn(channel, offset, numInstances, mapped);
+            }
+            
+            ByteBuffer[] weights = null;
+            if (header.weighted) {
+                long offset = dataOffset + numAttributes * columnSize;
+                weights = readColumn(channel, offset, numInstances, mapped);
+            }
+            
+            ColumnStore store = ColumnStore.wrap(projection.getTarget(), numInstances, columns, weights);
+            Instances instances = store.instances();
+            if (!projection.hasRowFilter()) 
+                return instances;
+            
+            Instances result = new Instances(instances, numInstances);
+            for (Instance inst : instances) {
+                if (projection.accept(inst)) result.add(inst);
+            }
+            result.compactify();
+            return result;
+            
+        } catch (IOException ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+
+    private static class Header {
+        
+        final Instances structure;
+        final int numInstances;
+        final boolean weighted;
+        
+        Header(Instances structure, int numInstances, boolean weighted) {
+            this.structure = structure;
+            this.numInstances = numInstances;
+            this.weighted = weighted;
+        }
+    }
+    
+    private static void writeFile(Instances instances, Path outpath) throws IOException {
+        
+        int numInstances = instances.numInstances();
+        int numAttributes = instances.numAttributes();
+        
+        boolean weighted = false;
+        for (Instance inst : instances) {
+            weighted |= inst.weight() != 1.0;
+        }
+        
+        byte[] header = writeHeader(instances, weighted);
+        
+        try (FileChannel channel = FileChannel.open(outpath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(dataOffset(header));
+            flush(channel, buffer);
+            
+            ByteBuffer wrapped = ByteBuffer.wrap(header);
+            while (wrapped.hasRemaining()) {
+                channel.write(wrapped);
+            }
+            
+            // Pad the data section to an 8 byte boundary
+            long padding = dataOffset(header) - channel.position();
+            for (int i = 0; i < padding; i++) {
+                buffer.put((byte) 0);
+            }
+            
+            for (int att = 0; att < numAttributes; att++) {
+                for (int row = 0; row < numInstances; row++) {
+                    if (buffer.remaining() < Double.BYTES) flush(channel, buffer);
+                    buffer.putDouble(instances.instance(row).value(att));
+                }
+            }
+            
+            if (weighted) {
+                for (int row = 0; row < numInstances; row++) {
+                    if (buffer.remaining() < Double.BYTES) flush(channel, buffer);
+                    buffer.putDouble(instances.instance(row).weight());
+                }
+            }
+            
+            flush(channel, buffer);
+        }
+    }
+    
+    /**
+     * Read the given column in blocks of ColumnStore.BLOCK_ROWS values. Mapped blocks are 
+     * sliced from regions of at most MAX_REGION_SIZE bytes.
+     */
+    private static ByteBuffer[] readColumn(FileChannel channel, long offset, int numRows, boolean mapped) throws IOException {
+        int numBlocks = (numRows + ColumnStore.BLOCK_MASK) >>> ColumnStore.BLOCK_SHIFT;
+        ByteBuffer[] blocks = new ByteBuffer[numBlocks];
+        
+        int blocksPerRegion = (int) (MAX_REGION_SIZE / Double.BYTES) >>> ColumnStore.BLOCK_SHIFT;
+        for (int first = 0; first < numBlocks; first += blocksPerRegion) {
+            int firstRow = first << ColumnStore.BLOCK_SHIFT;
+            int regionRows = (int) Math.min(numRows - firstRow, (long) blocksPerRegion << ColumnStore.BLOCK_SHIFT);
+            long position = offset + (long) firstRow * Double.BYTES;
+            ByteBuffer region = mapped ? channel.map(MapMode.READ_ONLY, position, (long) regionRows * Double.BYTES) : null;
+            
+            for (int i = first; i < Math.min(numBlocks, first + blocksPerRegion); i++) {
+                int start = ((i - first) << ColumnStore.BLOCK_SHIFT) * Double.BYTES;
+                int blockRows = Math.min(ColumnStore.BLOCK_ROWS, numRows - (i << ColumnStore.BLOCK_SHIFT));
+                if (mapped) {
+                    ByteBuffer block = region.duplicate();
+                    ((Buffer) block).limit(start + blockRows * Double.BYTES).position(start);
+                    blocks[i] = block.slice().order(ByteOrder.LITTLE_ENDIAN);
+                } else {
+                    blocks[i] = readBytes(channel, position + start, blockRows * Double.BYTES);
+                }
+            }
+        }
+        return blocks;
+    }
+    
+    private static ByteBuffer readBytes(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            AssertState.isTrue(read >= 0, "Unexpected end of binary dataset");
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+    
+    private static byte[] writeHeader(Instances instances, boolean weighted) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        writeString(out, instances.relationName());
+        writeInt(out, instances.numAttributes());
+        writeInt(out, instances.classIndex());
+        writeInt(out, instances.numInstances());
+        
+        for (int i = 0; i < instances.numAttributes(); i++) {
+            Attribute attr = instances.attribute(i);
+            AssertArg.isFalse(attr.isRelationValued(), "Relational attributes not supported: " + attr.name());
+            writeString(out, attr.name());
+            writeInt(out, attr.type());
+            if (attr.isNominal() || attr.isString()) {
+                writeInt(out, attr.numValues());
+                for (int j = 0; j < attr.numValues(); j++) {
+                    writeString(out, attr.value(j));
+                }
+            } else if (attr.isDate()) {
+                writeString(out, attr.getDateFormat());
+            }
+        }
+        
+        out.write(weighted ? 1 : 0);
+        return out.toByteArray();
+    }
+    
+    private static Header readHeader(ByteBuffer buffer) {
+        
+        String relationName = readString(buffer);
+        int numAttributes = buffer.getInt();
+        int classIndex = buffer.getInt();
+        int numInstances = buffer.getInt();
+        
+        ArrayList<Attribute> atts = new ArrayList<>(numAttributes);
+        for (int i = 0; i < numAttributes; i++) {
+            String name = readString(buffer);
+            int type = buffer.getInt();
+            if (type == Attribute.NOMINAL || type == Attribute.STRING) {
+                int numValues = buffer.getInt();
+                List<String> values = new ArrayList<>(numValues);
+                for (int j = 0; j < numValues; j++) {
+                    values.add(readString(buffer));
+                }
+                if (type == Attribute.NOMINAL) {
+                    atts.add(new Attribute(name, values));
+                } else {
+                    Attribute attr = new Attribute(name, (List<String>) null);
+                    values.forEach(val -> attr.addStringValue(val));
+                    atts.add(attr);
+                }
+            } else if (type == Attribute.DATE) {
+                atts.add(new Attribute(name, readString(buffer)));
+            } else {
+                atts.add(new Attribute(name));
+            }
+        }
+        
+        Instances structure = new Instances(relationName, atts, 0);
+        structure.setClassIndex(classIndex);
+        
+        boolean weighted = buffer.get() != 0;
+        return new Header(structure, numInstances, weighted);
+    }
+    
+    private static long dataOffset(byte[] header) {
+        long offset = PREFIX_LENGTH + header.length;
+        return (offset + 7) & ~7L;
+    }
+    
+    // The casts avoid the covariant ByteBuffer overrides of JDK 9+, which do not exist on Java 8
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        ((Buffer) buffer).clear();
+    }
+    
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+    
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+    
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,264 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import io.nessus.common.AssertArg;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Column-major storage of attribute values in direct memory.
+ * 
+ * Each column is split into blocks of a fixed number of rows, such that 
+ * no single buffer has to hold a whole column. Instance weights are only 
+ * stored when at least one of them differs from 1.0
+ * 
+ * A compact store narrows the type of each column. Numeric values are 
+ * stored as float, nominal values as unsigned byte or short codes with
+ * a bitset for missing values.
+ */
+public final class ColumnStore {
+
+    static final int BLOCK_SHIFT = 16;
+    static final int BLOCK_ROWS = 1 << BLOCK_SHIFT;
+    static final int BLOCK_MASK = BLOCK_ROWS - 1;
+    
+    enum ColumnType {
+        
+        DOUBLE(Double.BYTES), FLOAT(Float.BYTES), SHORT(Short.BYTES), BYTE(Byte.BYTES);
+        
+        final int size;
+        
+        ColumnType(int size) {
+            this.size = size;
+        }
+        
+        static ColumnType of(Attribute att, boolean compact) {
+            if (compact && att.isNumeric() && !att.isDate()) {
+                return FLOAT;
+            } else if (compact && att.isNominal() && att.numValues() <= 1 << Byte.SIZE) {
+                return BYTE;
+            } else if (compact && att.isNominal() && att.numValues() <= 1 << Short.SIZE) {
+                return SHORT;
+            }
+            return DOUBLE;
+        }
+    }
+    
+    private final Instances header;
+    private final int numAttributes;
+    private final int numInstances;
+    
+    // The type and value blocks per attribute
+    private final ColumnType[] types;
+    private final ByteBuffer[][] columns;
+    
+    // The missing values per attribute stored as codes, otherwise null 
+    private final BitSet[] missing;
+    
+    // The weight blocks or null for unit weights
+    private final ByteBuffer[] weights;
+    
+    private final boolean compact;
+    
+    private ColumnStore(Instances instances, boolean compact, boolean weighted) {
+        this.header = new Instances(instances, 0);
+        this.numAttributes = instances.numAttributes();
+        this.numInstances = instances.numInstances();
+        this.types = new ColumnType[numAttributes];
+        this.columns = new ByteBuffer[numAttributes][];
+        this.missing = new BitSet[numAttributes];
+        for (int col = 0; col < numAttributes; col++) {
+            types[col] = ColumnType.of(instances.attribute(col), compact);
+            columns[col] = allocate(numInstances, types[col].size);
+            if (types[col] == ColumnType.BYTE || types[col] == ColumnType.SHORT) {
+                missing[col] = new BitSet();
+            }
+        }
+        this.weights = weighted ? allocate(numInstances, Double.BYTES) : null;
+        this.compact = compact;
+    }
+
+    private ColumnStore(Instances header, int numInstances, ByteBuffer[][] columns, ByteBuffer[] weights) {
+        this.header = new Instances(header, 0);
+        this.numAttributes = header.numAttributes();
+        this.numInstances = numInstances;
+        this.types = new ColumnType[numAttributes];
+        this.columns = columns;
+        this.missing = new BitSet[numAttributes];
+        this.weights = weights;
+        this.compact = false;
+        Arrays.fill(types, ColumnType.DOUBLE);
+    }
+
+    /**
+     * Copy the given instances to a new store.
+     */
+    public static ColumnStore create(Instances instances, boolean compact) {
+        AssertArg.notNull(instances, "Null instances");
+        
+        boolean weighted = instances.stream().anyMatch(inst -> inst.weight() != 1.0);
+        ColumnStore store = new ColumnStore(instances, compact, weighted);
+        
+        for (int row = 0; row < store.numInstances; row++) {
+            Instance inst = instances.instance(row);
+            for (int col = 0; col < store.numAttributes; col++) {
+                store.put(row, col, inst.value(col));
+            }
+            if (weighted) {
+                store.weights[row >>> BLOCK_SHIFT].putDouble((row & BLOCK_MASK) * Double.BYTES, inst.weight());
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Create a store that reads the values from the given blocks of doubles without copying them, 
+     * e.g. from memory mapped regions of a file. Each block holds the values of {@link #BLOCK_ROWS} 
+     * rows, except for the last block of a column.
+     * @param weights the weight blocks or null for unit weights 
+     */
+    static ColumnStore wrap(Instances header, int numInstances, ByteBuffer[][] columns, ByteBuffer[] weights) {
+        AssertArg.notNull(header, "Null header");
+        AssertArg.notNull(columns, "Null columns");
+        AssertArg.isEqual(header.numAttributes(), columns.length, "Unexpected number of columns");
+        return new ColumnStore(header, numInstances, columns, weights);
+    }
+
+    /**
+     * True if all of the given instances read their values from a store.
+     */
+    public static boolean isColumnar(Instances instances) {
+        return instances.stream().allMatch(inst -> inst instanceof ColumnarInstance);
+    }
+    
+    /**
+     * True if all of the given instances read their values from a store with the given encoding.
+     */
+    public static boolean isColumnar(Instances instances, boolean compact) {
+        return instances.stream().allMatch(inst -> inst instanceof ColumnarInstance 
+                && ((ColumnarInstance) inst).getStore().isCompact() == compact);
+    }
+    
+    public boolean isCompact() {
+        return compact;
+    }
+    
+    /**
+     * Get instances that read their values from this store.
+     */
+    public Instances instances() {
+        // The header shares the attributes and hence the string values
+        Instances result = new Instances(header, numInstances);
+        for (int row = 0; row < numInstances; row++) {
+            result.add(new ColumnarInstance(this, row));
+        }
+        return result;
+    }
+    
+    public int numAttributes() {
+        return numAttributes;
+    }
+
+    public int numInstances() {
+        return numInstances;
+    }
+
+    /**
+     * Get the number of bytes used by the value and weight blocks
+     */
+    public long getSize() {
+        long size = weights != null ? (long) numInstances * Double.BYTES : 0;
+        for (ColumnType type : types) {
+            size += (long) numInstances * type.size;
+        }
+        return size;
+    }
+    
+    public double value(int row, int col) {
+        ByteBuffer block = columns[col][row >>> BLOCK_SHIFT];
+        int index = row & BLOCK_MASK;
+        switch (types[col]) {
+            case FLOAT:
+                return block.getFloat(index * Float.BYTES);
+            case SHORT:
+                return missing[col].get(row) ? Utils.missingValue() : Short.toUnsignedInt(block.getShort(index * Short.BYTES));
+            case BYTE:
+                return missing[col].get(row) ? Utils.missingValue() : Byte.toUnsignedInt(block.get(index));
+            default:
+                return block.getDouble(index * Double.BYTES);
+        }
+    }
+
+    public double weight(int row) {
+        return weights != null ? weights[row >>> BLOCK_SHIFT].getDouble((row & BLOCK_MASK) * Double.BYTES) : 1.0;
+    }
+    
+    public double[] values(int row) {
+        double[] values = new double[numAttributes];
+        for (int col = 0; col < numAttributes; col++) {
+            values[col] = value(row, col);
+        }
+        return values;
+    }
+    
+    private void put(int row, int col, double value) {
+        ByteBuffer block = columns[col][row >>> BLOCK_SHIFT];
+        int index = row & BLOCK_MASK;
+        switch (types[col]) {
+            case FLOAT:
+                block.putFloat(index * Float.BYTES, (float) value);
+                break;
+            case SHORT:
+                if (Utils.isMissingValue(value)) {
+                    missing[col].set(row);
+                } else {
+                    block.putShort(index * Short.BYTES, (short) value);
+                }
+                break;
+            case BYTE:
+                if (Utils.isMissingValue(value)) {
+                    missing[col].set(row);
+                } else {
+                    block.put(index, (byte) value);
+                }
+                break;
+            default:
+                block.putDouble(index * Double.BYTES, value);
+        }
+    }
+    
+    private static ByteBuffer[] allocate(int numRows, int size) {
+        int numBlocks = (numRows + BLOCK_MASK) >>> BLOCK_SHIFT;
+        ByteBuffer[] blocks = new ByteBuffer[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            int blockRows = Math.min(BLOCK_ROWS, numRows - i * BLOCK_ROWS);
+            blocks[i] = ByteBuffer.allocateDirect(blockRows * size).order(ByteOrder.nativeOrder());
+        }
+        return blocks;
+    }
+}
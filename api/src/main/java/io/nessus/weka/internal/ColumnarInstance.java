@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import weka.core.AbstractInstance;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Utils;
+
+/**
+ * An instance that reads its values from a {@link ColumnStore}.
+ * 
+ * The instance only holds the store and its row. Like a DenseInstance, it 
+ * takes a private copy of its values on the first modification, which 
+ * is then used instead of the store.
+ */
+public class ColumnarInstance extends AbstractInstance {
+
+    private static final long serialVersionUID = 1L;
+    
+    private final transient ColumnStore store;
+    private final int row;
+    
+    public ColumnarInstance(ColumnStore store, int row) {
+        this.store = store;
+        this.row = row;
+        m_Weight = store.weight(row);
+    }
+
+    private ColumnarInstance(ColumnarInstance other) {
+        this.store = other.store;
+        this.row = other.row;
+        m_AttValues = other.m_AttValues;
+        m_Weight = other.m_Weight;
+    }
+
+    ColumnStore getStore() {
+        return store;
+    }
+    
+    public boolean isDetached() {
+        return m_AttValues != null;
+    }
+    
+    @Override
+    public Object copy() {
+        ColumnarInstance result = new ColumnarInstance(this);
+        result.m_Dataset = m_Dataset;
+        return result;
+    }
+
+    public Instance copy(double[] values) {
+        DenseInstance result = new DenseInstance(m_Weight, values);
+        result.setDataset(m_Dataset);
+        return result;
+    }
+
+    @Override
+    public int index(int position) {
+        return position;
+    }
+
+    @Override
+    public Instance mergeInstance(Instance inst) {
+        return new DenseInstance(this).mergeInstance(inst);
+    }
+
+    @Override
+    public int numAttributes() {
+        return m_AttValues != null ? m_AttValues.length : store.numAttributes();
+    }
+
+    @Override
+    public int numValues() {
+        return numAttributes();
+    }
+
+    @Override
+    public void replaceMissingValues(double[] array) {
+        if (array == null || array.length != numAttributes()) {
+            throw new IllegalArgumentException("Unequal number of attributes!");
+        }
+        freshAttributeVector();
+        for (int i = 0; i < m_AttValues.length; i++) {
+            if (isMissing(i)) {
+                m_AttValues[i] = array[i];
+            }
+        }
+    }
+
+    @Override
+    public void setValue(int attIndex, double value) {
+        freshAttributeVector();
+        m_AttValues[attIndex] = value;
+    }
+
+    @Override
+    public void setValueSparse(int indexOfIndex, double value) {
+        freshAttributeVector();
+        m_AttValues[indexOfIndex] = value;
+    }
+
+    @Override
+    public double[] toDoubleArray() {
+        return m_AttValues != null ? m_AttValues.clone() : store.values(row);
+    }
+
+    @Override
+    public String toStringNoWeight(int afterDecimalPoint) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < numAttributes(); i++) {
+            if (i > 0) {
+                text.append(",");
+            }
+            text.append(toString(i, afterDecimalPoint));
+        }
+        return text.toString();
+    }
+
+    @Override
+    public double value(int attIndex) {
+        return m_AttValues != null ? m_AttValues[attIndex] : store.value(row, attIndex);
+    }
+
+    @Override
+    public double valueSparse(int indexOfIndex) {
+        return value(indexOfIndex);
+    }
+
+    @Override
+    public boolean isMissingSparse(int indexOfIndex) {
+        return isMissing(indexOfIndex);
+    }
+
+    @Override
+    protected void forceDeleteAttributeAt(int position) {
+        double[] values = toDoubleArray();
+        m_AttValues = new double[values.length - 1];
+        System.arraycopy(values, 0, m_AttValues, 0, position);
+        System.arraycopy(values, position + 1, m_AttValues, position, values.length - position - 1);
+    }
+
+    @Override
+    protected void forceInsertAttributeAt(int position) {
+        double[] values = toDoubleArray();
+        m_AttValues = new double[values.length + 1];
+        System.arraycopy(values, 0, m_AttValues, 0, position);
+        m_AttValues[position] = Utils.missingValue();
+        System.arraycopy(values, position, m_AttValues, position + 1, values.length - position);
+    }
+
+    @Override
+    public String getRevision() {
+        return "1";
+    }
+    
+    /**
+     * Serialize as a DenseInstance, because the store is not serializable.
+     */
+    private Object writeReplace() {
+        DenseInstance result = new DenseInstance(m_Weight, toDoubleArray());
+        result.setDataset(m_Dataset);
+        return result;
+    }
+}
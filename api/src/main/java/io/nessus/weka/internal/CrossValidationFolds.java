@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.nessus.common.AssertArg;
+import io.nessus.weka.UncheckedException;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+
+/**
+ * The training and test sets of a cross-validation.
+ * 
+ * The folds are drawn with the same random sequence as Evaluation.crossValidateModel.
+ * Evaluating the fold classifiers in fold order gives the same statistics as a 
+ * sequential run, no matter in which order or on which threads they were built.
+ * 
+ * The sets are created when they are needed. Each fold keeps a copy of the random 
+ * generator to shuffle its training set.
+ */
+public final class CrossValidationFolds {
+
+    private final Instances data;
+    private final int numFolds;
+    private final List<Random> randoms;
+    
+    public CrossValidationFolds(Instances data, int numFolds, Random random) {
+        AssertArg.notNull(data, "Null data");
+        AssertArg.notNull(random, "Null random");
+        AssertArg.isTrue(numFolds > 1, "Invalid number of folds: " + numFolds);
+        
+        data = new Instances(data);
+        data.randomize(random);
+        if (data.classAttribute().isNominal()) {
+            data.stratify(numFolds);
+        }
+        
+        this.data = data;
+        this.numFolds = numFolds;
+        this.randoms = new ArrayList<>(numFolds);
+        
+        // Advance the generator like trainCV would, which shuffles each training set
+        int numInstances = data.numInstances();
+        for (int i = 0; i < numFolds; i++) {
+            randoms.add(copy(random));
+            int testSize = numInstances / numFolds + (i < numInstances % numFolds ? 1 : 0);
+            for (int j = numInstances - testSize - 1; j > 0; j--) {
+                random.nextInt(j + 1);
+            }
+        }
+    }
+
+    public int getNumFolds() {
+        return numFolds;
+    }
+    
+    public Instances trainSet(int fold) {
+        return data.trainCV(numFolds, fold, copy(randoms.get(fold)));
+    }
+    
+    public Instances testSet(int fold) {
+        return data.testCV(numFolds, fold);
+    }
+    
+    /**
+     * Build a copy of the given classifier on the training set of the given fold.
+     */
+    public Classifier buildClassifier(Classifier template, int fold) throws Exception {
+        Classifier classifier = AbstractClassifier.makeCopy(template);
+        classifier.buildClassifier(trainSet(fold));
+        return classifier;
+    }
+    
+    /**
+     * Evaluate the classifier of the given fold on its test set. 
+     * The priors are set from the unmodified training set.
+     */
+    public void evaluate(Evaluation evaluation, Classifier classifier, int fold) throws Exception {
+        evaluation.setPriors(trainSet(fold));
+        evaluation.evaluateModel(classifier, testSet(fold));
+    }
+    
+    private static Random copy(Random random) {
+        try {
+            return (Random) new SerializedObject(random).getObject();
+        } catch (Exception ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+}
@@ -23,63 +23,179 @@ import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import io.nessus.common.AssertArg;
 import io.nessus.common.AssertState;
+import io.nessus.weka.ClassifierSearch;
 import io.nessus.weka.Dataset;
+import io.nessus.weka.FittedFilter;
 import io.nessus.weka.FunctionalClassifier;
 import io.nessus.weka.FunctionalEvaluation;
 import io.nessus.weka.FunctionalInstances;
+import io.nessus.weka.StorageMode;
 import io.nessus.weka.UncheckedException;
 import io.nessus.weka.utils.DatasetUtils;
+import io.nessus.weka.utils.InstancesUtils;
+import io.nessus.weka.utils.SlotStore;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.core.Attribute;
+import weka.core.Instance;
 import weka.core.Instances;
 
 public class DatasetImpl extends Dataset implements FunctionalEvaluation<Dataset>, FunctionalClassifier<Dataset>, FunctionalInstances<Dataset> {
 
+    private static final Logger LOG = LoggerFactory.getLogger(DatasetImpl.class);
+    
     private static final String DEFAULT_SLOT = "_default";
     private static final String TRAINING_DATA_SLOT = "_training";
     private static final String TEST_DATA_SLOT = "_test";
     
-    private final Map<String, Instances> storage = new HashMap<>();
+    private final SlotStore storage = new SlotStore();
+    private final StorageMode storageMode;
     private Classifier classifier;
     private Evaluation evaluation;
     private Instances instances;
+    
+    // True if the instances are also referenced from a slot or snapshot
+    private boolean shared;
+    
+    // Convert to sparse instances from this fraction of zero values
+    private double sparseThreshold = Double.POSITIVE_INFINITY;
+    
+    // The filters that are applied when the instances are needed
+    private final List<String> pendingFilters = new ArrayList<>();
+    private boolean lazy;
+    private boolean parallel;
+    
+    // A pending view of selected rows from the parent instances
+    private Instances viewParent;
+    private int[] viewIndices;
 
     public DatasetImpl(Instances instances) {
-        this.instances = assignClassIndex(instances);
+        this(instances, StorageMode.HEAP);
+    }
+
+    public DatasetImpl(Instances instances, StorageMode storageMode) {
+        AssertArg.notNull(storageMode, "Null storageMode");
+        this.storageMode = storageMode;
+        this.instances = store(assignClassIndex(instances));
+    }
+
+    /**
+     * Create a view of the given rows from the parent instances, with the settings of the source.
+     * The parent must not be modified while the view is pending.
+     */
+    private DatasetImpl(DatasetImpl source, Instances parent, int[] indices) {
+        this.storageMode = source.storageMode;
+        this.sparseThreshold = source.sparseThreshold;
+        this.lazy = source.lazy;
+        this.parallel = source.parallel;
+        this.viewParent = parent;
+        this.viewIndices = indices;
     }
 
     /**
      * Guess the class index if not set already
      */
     private Instances assignClassIndex(Instances instances) {
-        AssertArg.notNull(instances, "Null instances");
-        
-        if (instances.classIndex() < 0) {
-            Attribute attr = instances.attribute("class");
-            if (attr != null) {
-                instances.setClass(attr);
-            } else {
-                int numatts = instances.numAttributes();
-                if (numatts > 0) {
-                    attr = instances.attribute(numatts - 1);
-                    if (attr.isNominal()) {
-                        instances.setClass(attr);
-                    }
-                }
+        return InstancesUtils.assignClassIndex(instances);
+    }
+    
+    /**
+     * Move the given instances to the storage used by this dataset
+     */
+    private Instances store(Instances instances) {
+        if (sparseThreshold <= 1.0) {
+            if (InstancesUtils.isSparse(instances)) 
+                return instances;
+            if (InstancesUtils.sparsity(instances) >= sparseThreshold) 
+                return sparse(instances);
+        }
+        return columnar(instances);
+    }
+    
+    private Instances columnar(Instances instances) {
+        boolean compact = storageMode == StorageMode.COMPACT;
+        if (storageMode.isColumnar() && !ColumnStore.isColumnar(instances, compact)) {
+            instances = ColumnStore.create(instances, compact).instances();
+        }
+        return instances;
+    }
+    
+    private Instances sparse(Instances instances) {
+        Instances result = InstancesUtils.toSparse(instances);
+        if (result != instances) {
+            long saved = InstancesUtils.estimateSize(instances) - InstancesUtils.estimateSize(result);
+            LOG.info("Converted {} instances to sparse, saved {} bytes", result.numInstances(), saved);
+        }
+        return result;
+    }
+    
+    /**
+     * Get instances that can safely be modified. 
+     * 
+     * Instances that are shared with a slot or snapshot are copied first.
+     */
+    private Instances mutableInstances() {
+        instances();
+        if (shared) {
+            instances = new Instances(instances);
+            shared = false;
+        }
+        return instances;
+    }
+    
+    /**
+     * Get the current instances as a read-only snapshot.
+     */
+    private Instances snapshotInstances() {
+        instances();
+        shared = true;
+        return instances;
+    }
+    
+    private void setInstances(Instances result) {
+        instances = store(assignClassIndex(result));
+        shared = false;
+        viewParent = null;
+        viewIndices = null;
+        pendingFilters.clear();
+    }
+    
+    /**
+     * Get the current instances for read-only access.
+     * 
+     * A pending view is materialized by adding the selected rows to a new Instances.
+     */
+    private Instances instances() {
+        if (viewParent != null) {
+            List<String> filterSpecs = new ArrayList<>(pendingFilters);
+            Instances result = new Instances(viewParent, viewIndices.length);
+            for (int idx : viewIndices) {
+                result.add(viewParent.instance(idx));
             }
+            setInstances(result);
+            pendingFilters.addAll(filterSpecs);
+        }
+        if (!pendingFilters.isEmpty()) {
+            Instances result = DatasetUtils.applyFilters(instances, pendingFilters, parallel);
+            setInstances(result);
         }
         return instances;
     }
@@ -87,36 +203,48 @@ public class DatasetImpl extends Dataset implements FunctionalEvaluation<Dataset
     @Override
     public Dataset read(Path inpath) {
         Instances result = DatasetUtils.read(inpath);
-        instances = assignClassIndex(result);
+        setInstances(result);
         return this;
     }
     
     @Override
     public Dataset read(String inpath) {
         Instances result = DatasetUtils.read(Paths.get(inpath));
-        instances = assignClassIndex(result);
+        setInstances(result);
         return this;
     }
     
     @Override
     public Dataset read(URL url) {
         Instances result = DatasetUtils.read(url);
-        instances = assignClassIndex(result);
+        setInstances(result);
         return this;
     }
     
     @Override
     public Dataset write(Path outpath) {
-        DatasetUtils.write(instances, outpath);
+        DatasetUtils.write(instances(), outpath);
         return this;
     }
 
     @Override
     public Dataset write(String outpath) {
-        DatasetUtils.write(instances, Paths.get(outpath));
+        DatasetUtils.write(instances(), Paths.get(outpath));
         return this;
     }
 
+    @Override
+    public CompletableFuture<Dataset> writeAsync(Path outpath) {
+        return writeAsync(outpath, DatasetUtils.getIOExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Dataset> writeAsync(Path outpath, Executor executor) {
+        // Write a snapshot that is not affected by subsequent changes
+        Instances snapshot = snapshotInstances();
+        return DatasetUtils.writeAsync(snapshot, outpath, executor).thenApply(v -> this);
+    }
+
     @Override
     public Dataset push() {
         push(DEFAULT_SLOT);
@@ -137,7 +265,7 @@ public class DatasetImpl extends Dataset implements FunctionalEvaluation<Dataset
 
     @Override
     public Dataset push(String name) {
-        storage.put(name, new Instances(instances));
+        storage.put(name, snapshotInstances());
         return this;
     }
 
@@ -161,50 +289,238 @@ public class DatasetImpl extends Dataset implements FunctionalEvaluation<Dataset
 
     @Override
     public Dataset pop(String name) {
-        Instances result = storage.remove(name);
+        Instances result;
+        boolean reloaded;
+        synchronized (storage) {
+            reloaded = storage.isSpilled(name);
+            result = storage.remove(name);
+        }
         AssertState.notNull(result, "Cannot find instances with name '" + name + "' on stack");
-        instances = assignClassIndex(result);
+        
+        // Resident instances may still be referenced by other slots, async writers 
+        // or row views. Only spilled slots are read back as a private copy, which 
+        // goes into the storage of this dataset
+        shared = !reloaded;
+        instances = reloaded ? store(result) : result;
+        pendingFilters.clear();
+        viewParent = null;
+        viewIndices = null;
         return this;
     }
 
     @Override
     public Dataset apply(String filterSpec) {
-        Instances result = DatasetUtils.applyFilter(getInstances(), filterSpec);
-        instances = assignClassIndex(result);
+        if (lazy) {
+            AssertArg.notNull(filterSpec, "Null filterSpec");
+            pendingFilters.add(filterSpec);
+            return this;
+        }
+        Instances result = parallel ? 
+                DatasetUtils.applyFilters(instances(), Collections.singletonList(filterSpec), true) : 
+                DatasetUtils.applyFilter(instances(), filterSpec);
+        setInstances(result);
+        return this;
+    }
+    
+    @Override
+    public Dataset parallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+    
+    @Override
+    public Dataset apply(FittedFilter filter) {
+        AssertArg.notNull(filter, "Null filter");
+        Instances result = filter.apply(instances());
+        setInstances(result);
+        return this;
+    }
+    
+    @Override
+    public Dataset lazy(boolean lazy) {
+        if (!lazy) {
+            instances();
+        }
+        this.lazy = lazy;
         return this;
     }
     
     @Override
     public Dataset applyToInstances(UnaryOperator<Instances> operator) {
-        Instances result = operator.apply(instances);
-        instances = assignClassIndex(result);
+        Instances result = operator.apply(mutableInstances());
+        setInstances(result);
         return this;
     }
     
     @Override
     public Dataset applyToInstances(Function<Dataset, Instances> function) {
         Instances result = function.apply(this);
-        instances = assignClassIndex(result);
+        setInstances(result);
         return this;
     }
 
     @Override
     public Dataset consumeInstances(Consumer<Instances> consumer) {
-        consumer.accept(instances);
+        consumer.accept(mutableInstances());
+        return this;
+    }
+
+    @Override
+    public Dataset autoSparse(double threshold) {
+        AssertArg.isTrue(threshold >= 0.0, "Invalid threshold: " + threshold);
+        sparseThreshold = threshold;
+        Instances current = instances();
+        Instances result = store(current);
+        if (result != current) {
+            setInstances(result);
+        }
+        return this;
+    }
+
+    @Override
+    public Dataset toSparse() {
+        Instances current = instances();
+        Instances result = sparse(current);
+        if (result != current) {
+            instances = result;
+            shared = false;
+        }
         return this;
     }
 
+    @Override
+    public Dataset toDense() {
+        Instances current = instances();
+        Instances result = columnar(InstancesUtils.toDense(current));
+        if (result != current) {
+            instances = result;
+            shared = false;
+        }
+        return this;
+    }
+
+    @Override
+    public Dataset rows(int[] indices) {
+        AssertArg.notNull(indices, "Null indices");
+        int numInstances = numInstances();
+        for (int idx : indices) {
+            AssertArg.isTrue(idx >= 0 && idx < numInstances, "Invalid row index: " + idx);
+        }
+        
+        // A view of a pending view selects directly from the parent
+        if (viewParent != null) {
+            int[] composed = new int[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                composed[i] = viewIndices[indices[i]];
+            }
+            return new DatasetImpl(this, viewParent, composed);
+        }
+        
+        return new DatasetImpl(this, snapshotInstances(), indices.clone());
+    }
+
+    @Override
+    public List<Dataset> split(double ratio, long seed) {
+        AssertArg.isTrue(ratio >= 0.0 && ratio <= 1.0, "Invalid ratio: " + ratio);
+        
+        int numInstances = numInstances();
+        int[] indices = new int[numInstances];
+        Arrays.setAll(indices, i -> i);
+        
+        Random random = new Random(seed);
+        for (int i = numInstances - 1; i > 0; i--) {
+            swap(indices, i, random.nextInt(i + 1));
+        }
+        
+        int numTraining = (int) Math.round(numInstances * ratio);
+        Dataset training = rows(Arrays.copyOfRange(indices, 0, numTraining));
+        Dataset testing = rows(Arrays.copyOfRange(indices, numTraining, numInstances));
+        return Arrays.asList(training, testing);
+    }
+
+    /**
+     * Follows Instances.stratify(numFolds) and Instances.testCV(numFolds, fold - 1)
+     * on the row indices, without randomization.
+     */
+    @Override
+    public List<Dataset> stratifiedSplit(int numFolds, int fold) {
+        AssertArg.isTrue(numFolds > 1, "Invalid number of folds: " + numFolds);
+        AssertArg.isTrue(fold > 0 && fold <= numFolds, "Invalid fold: " + fold);
+        
+        int numInstances = numInstances();
+        AssertArg.isTrue(numFolds <= numInstances, "More folds than instances: " + numFolds);
+        
+        int[] indices = new int[numInstances];
+        Arrays.setAll(indices, i -> i);
+        
+        Instances header = viewParent != null ? viewParent : instances;
+        AssertState.isTrue(header.classIndex() >= 0, "Class index not set");
+        
+        if (header.classAttribute().isNominal()) {
+            
+            double[] classValues = new double[numInstances];
+            for (int i = 0; i < numInstances; i++) {
+                classValues[i] = instance(i).classValue();
+            }
+            
+            // Sort by class
+            int index = 1;
+            while (index < numInstances) {
+                double value = classValues[index - 1];
+                for (int j = index; j < numInstances; j++) {
+                    if (classValues[j] == value || Double.isNaN(value) && Double.isNaN(classValues[j])) {
+                        swap(indices, index, j);
+                        swap(classValues, index, j);
+                        index++;
+                    }
+                }
+                index++;
+            }
+            
+            // Distribute the classes over the folds
+            int[] stratified = new int[numInstances];
+            int pos = 0;
+            for (int start = 0; pos < numInstances; start++) {
+                for (int j = start; j < numInstances; j += numFolds) {
+                    stratified[pos++] = indices[j];
+                }
+            }
+            indices = stratified;
+        }
+        
+        int numFold = fold - 1;
+        int numTest = numInstances / numFolds;
+        int offset = numInstances % numFolds;
+        if (numFold < offset) {
+            numTest++;
+            offset = numFold;
+        }
+        int first = numFold * (numInstances / numFolds) + offset;
+        
+        int[] training = new int[numInstances - numTest];
+        System.arraycopy(indices, 0, training, 0, first);
+        System.arraycopy(indices, first + numTest, training, first, numInstances - first - numTest);
+        int[] testing = Arrays.copyOfRange(indices, first, first + numTest);
+        
+        return Arrays.asList(rows(training), rows(testing));
+    }
+
     @Override
     public List<Attribute> getAttributes() {
         List<Attribute> result = new ArrayList<>();
-        Enumeration<Attribute> en = instances.enumerateAttributes();
+        Enumeration<Attribute> en = instances().enumerateAttributes();
         while (en.hasMoreElements()) result.add(en.nextElement());
         return result;
     }
 
     @Override
     public Instances getInstances() {
-        return instances;
+        return snapshotInstances();
+    }
+
+    @Override
+    public SlotStore getSlotStore() {
+        return storage;
     }
 
     @Override
@@ -231,7 +547,21 @@ public class DatasetImpl extends Dataset implements FunctionalEvaluation<Dataset
     
     @Override
     public Dataset buildClassifier(String classifierSpec) {
-        Classifier result = DatasetUtils.buildClassifier(getInstances(), classifierSpec);
+        Classifier result = DatasetUtils.buildClassifier(instances(), classifierSpec);
+        AssertState.notNull(result, "Null classifier");
+        classifier = result;
+        return this;
+    }
+    
+    @Override
+    public Map<String, Classifier> buildClassifiers(String... classifierSpecs) {
+        return DatasetUtils.buildClassifiers(instances(), classifierSpecs);
+    }
+    
+    @Override
+    public Dataset buildClassifier(ClassifierSearch search) {
+        AssertArg.notNull(search, "Null search");
+        Classifier result = search.run(instances()).getClassifier();
         AssertState.notNull(result, "Null classifier");
         classifier = result;
         return this;
@@ -274,10 +604,19 @@ public class DatasetImpl extends Dataset implements FunctionalEvaluation<Dataset
 
     @Override
     public Dataset crossValidateModel(int numFolds, int seed) {
-        Instances data = getInstances();
+        return crossValidateModel(numFolds, seed, false);
+    }
+
+    @Override
+    public Dataset crossValidateModel(int numFolds, int seed, boolean parallel) {
+        Instances data = instances();
         try {
             Evaluation ev = evaluate().getEvaluation();
-            ev.crossValidateModel(assertClassifier(), data, numFolds, new Random(seed));
+            if (parallel) {
+                ParallelCrossValidation.crossValidateModel(ev, assertClassifier(), data, numFolds, new Random(seed));
+            } else {
+                ev.crossValidateModel(assertClassifier(), data, numFolds, new Random(seed));
+            }
         } catch (Exception ex) {
             throw UncheckedException.create(ex);
         }
@@ -300,7 +639,7 @@ public class DatasetImpl extends Dataset implements FunctionalEvaluation<Dataset
     public Dataset evaluateModel() {
         try {
             Evaluation ev = evaluate().getEvaluation();
-            ev.evaluateModel(assertClassifier(), instances);
+            ev.evaluateModel(assertClassifier(), instances());
         } catch (Exception ex) {
             throw UncheckedException.create(ex);
         }
@@ -310,7 +649,7 @@ public class DatasetImpl extends Dataset implements FunctionalEvaluation<Dataset
     @Override
     public Dataset evaluate() {
         try {
-            evaluation = new Evaluation(instances);
+            evaluation = new Evaluation(instances());
         } catch (Exception ex) {
             throw UncheckedException.create(ex);
         }
@@ -329,6 +668,29 @@ public class DatasetImpl extends Dataset implements FunctionalEvaluation<Dataset
     }
     
 
+    private int numInstances() {
+        if (!pendingFilters.isEmpty()) {
+            instances();
+        }
+        return viewParent != null ? viewIndices.length : instances.numInstances();
+    }
+    
+    private Instance instance(int row) {
+        return viewParent != null ? viewParent.instance(viewIndices[row]) : instances.instance(row);
+    }
+    
+    private static void swap(int[] values, int i, int j) {
+        int tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+    
+    private static void swap(double[] values, int i, int j) {
+        double tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+    
     private Classifier assertClassifier() {
         AssertState.notNull(classifier, "Classifier not available");
         return classifier;
@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import io.nessus.common.AssertArg;
+import io.nessus.weka.UncheckedException;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.filters.StreamableFilter;
+
+/**
+ * Applies a sequence of filters to a dataset.
+ * 
+ * Consecutive streamable filters are fused, such that each instance passes through 
+ * all of them in a single pass without intermediate datasets. Other filters are
+ * applied to the whole dataset with Filter.useFilter.
+ * 
+ * In parallel mode, large datasets are split into chunks that pass through copies 
+ * of the streamable filters in parallel. The outputs are concatenated in order.
+ * This only applies to filters that are known to work on each instance in isolation. 
+ * Other streamable filters, like instance sampling or time series filters, keep state 
+ * across instances and run in a single pass.
+ * 
+ * Datasets with string or relational attributes are filtered one filter at a time, 
+ * because their values are held by the output format of each filter. 
+ */
+public class FilterPipeline {
+
+    public static final int PARALLEL_THRESHOLD = 10000;
+    
+    private static final int MIN_CHUNK_SIZE = 1024;
+    
+    // Streamable filters that transform each instance independently
+    private static final Set<String> PER_INSTANCE_FILTERS = new HashSet<>(Arrays.asList(
+            "weka.filters.AllFilter",
+            "weka.filters.unsupervised.attribute.Add",
+            "weka.filters.unsupervised.attribute.AddExpression",
+            "weka.filters.unsupervised.attribute.ClassAssigner",
+            "weka.filters.unsupervised.attribute.Copy",
+            "weka.filters.unsupervised.attribute.Remove",
+            "weka.filters.unsupervised.attribute.RemoveType",
+            "weka.filters.unsupervised.attribute.RenameAttribute",
+            "weka.filters.unsupervised.attribute.RenameRelation",
+            "weka.filters.unsupervised.attribute.Reorder",
+            "weka.filters.unsupervised.attribute.ReplaceMissingWithUserConstant",
+            "weka.filters.unsupervised.attribute.SwapValues",
+            "weka.filters.unsupervised.instance.RemoveWithValues"));
+    
+    private final List<Filter> filters;
+    private final boolean parallel;
+    
+    public FilterPipeline(List<Filter> filters) {
+        this(filters, false);
+    }
+    
+    public FilterPipeline(List<Filter> filters, boolean parallel) {
+        AssertArg.notNull(filters, "Null filters");
+        this.filters = new ArrayList<>(filters);
+        this.parallel = parallel;
+    }
+
+    public Instances apply(Instances input) throws Exception {
+        AssertArg.notNull(input, "Null input");
+        
+        Instances result = input;
+        List<Filter> segment = new ArrayList<>();
+        for (Filter filter : filters) {
+            if (filter instanceof StreamableFilter) {
+                segment.add(filter);
+            } else {
+                result = applySegment(result, segment);
+                segment.clear();
+                filter.setInputFormat(result);
+                result = Filter.useFilter(result, filter);
+            }
+        }
+        return applySegment(result, segment);
+    }
+
+    private Instances applySegment(Instances input, List<Filter> segment) throws Exception {
+        if (segment.isEmpty()) 
+            return input;
+        
+        Instances result = null;
+        
+        if (!input.checkForStringAttributes() && !input.checkForAttributeType(Attribute.RELATIONAL)) {
+            if (parallel && input.numInstances() >= PARALLEL_THRESHOLD && isPerInstance(segment)) {
+                result = applyParallel(input, segment);
+            } else if (segment.size() > 1) {
+                result = applyChunk(input, segment, 0, input.numInstances());
+            }
+        }
+        
+        if (result == null) {
+            result = input;
+            for (Filter filter : segment) {
+                filter.setInputFormat(result);
+                result = Filter.useFilter(result, filter);
+            }
+        }
+        
+        return result;
+    }
+
+    private static boolean isPerInstance(List<Filter> segment) {
+        return segment.stream().allMatch(filter -> PER_INSTANCE_FILTERS.contains(filter.getClass().getName()));
+    }
+
+    private Instances applyParallel(Instances input, List<Filter> segment) throws Exception {
+        
+        int numInstances = input.numInstances();
+        int numChunks = Math.min(4 * ForkJoinPool.getCommonPoolParallelism(), numInstances / MIN_CHUNK_SIZE);
+        if (numChunks < 2) 
+            return applyChunk(input, segment, 0, numInstances);
+        
+        // Each chunk gets its own copies of the filters
+        List<List<Filter>> copies = new ArrayList<>();
+        for (int i = 0; i < numChunks; i++) {
+            List<Filter> copy = new ArrayList<>();
+            for (Filter filter : segment) {
+                copy.add(Filter.makeCopy(filter));
+            }
+            copies.add(copy);
+        }
+        
+        List<Instances> chunks = IntStream.range(0, numChunks).parallel()
+                .mapToObj(i -> {
+                    int from = (int) ((long) numInstances * i / numChunks);
+                    int to = (int) ((long) numInstances * (i + 1) / numChunks);
+                    try {
+                        return applyChunk(input, copies.get(i), from, to);
+                    } catch (Exception ex) {
+                        throw UncheckedException.create(ex);
+                    }
+                })
+                .collect(Collectors.toList());
+        
+        if (chunks.contains(null)) 
+            return null;
+        
+        Instances result = new Instances(chunks.get(0), chunks.stream().mapToInt(Instances::numInstances).sum());
+        for (Instances chunk : chunks) {
+            for (Instance inst : chunk) {
+                result.add(inst);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Pass the given range of instances through the given streamable filters.
+     * @return the filtered instances or null if a filter cannot determine its output format
+     */
+    private Instances applyChunk(Instances input, List<Filter> segment, int from, int to) throws Exception {
+        
+        // Streamable filters define their output format with the input format
+        Instances format = input;
+        for (Filter filter : segment) {
+            if (!filter.setInputFormat(format)) 
+                return null;
+            format = filter.getOutputFormat();
+        }
+        
+        Instances result = new Instances(format, to - from);
+        for (int i = from; i < to; i++) {
+            push(segment, 0, input.instance(i), result);
+        }
+        for (int i = 0; i < segment.size(); i++) {
+            segment.get(i).batchFinished();
+            drain(segment, i, result);
+        }
+        return result;
+    }
+
+    private void push(List<Filter> segment, int index, Instance inst, Instances result) throws Exception {
+        if (segment.get(index).input(inst)) {
+            drain(segment, index, result);
+        }
+    }
+
+    private void drain(List<Filter> segment, int index, Instances result) throws Exception {
+        Filter filter = segment.get(index);
+        Instance inst;
+        while ((inst = filter.output()) != null) {
+            if (index + 1 < segment.size()) {
+                push(segment, index + 1, inst, result);
+            } else {
+                result.add(inst);
+            }
+        }
+    }
+}
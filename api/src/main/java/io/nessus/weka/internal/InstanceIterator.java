@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import io.nessus.common.AssertArg;
+import io.nessus.weka.UncheckedException;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.Loader;
+
+/**
+ * Iterates over the instances of an incremental loader one at a time.
+ * 
+ * All instances share the same (empty) header. The underlying source
+ * is closed when the iterator is exhausted or closed explicitly.
+ */
+public class InstanceIterator implements Iterator<Instance>, Closeable {
+
+    private final Loader loader;
+    private final Instances structure;
+    private final Closeable source;
+    
+    private Instance next;
+    private boolean done;
+    
+    public InstanceIterator(Loader loader, Instances structure, Closeable source) {
+        AssertArg.notNull(loader, "Null loader");
+        AssertArg.notNull(structure, "Null structure");
+        this.loader = loader;
+        this.structure = structure;
+        this.source = source;
+    }
+
+    public Instances getStructure() {
+        return structure;
+    }
+    
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = loader.getNextInstance(structure);
+            } catch (IOException ex) {
+                throw UncheckedException.create(ex);
+            }
+            if (next == null) {
+                close();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Instance next() {
+        if (!hasNext()) 
+            throw new NoSuchElementException();
+        Instance result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (!done) {
+            done = true;
+            try {
+                if (source != null) source.close();
+            } catch (IOException ex) {
+                throw UncheckedException.create(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import weka.core.Attribute;
+
+/**
+ * Maps the UTF-8 encoded labels of a nominal attribute to their index,
+ * without decoding the field bytes to a String.
+ * 
+ * An empty dictionary grows with the values of a string attribute, 
+ * so that every distinct value is only decoded once.
+ */
+final class NominalDictionary {
+
+    // Open addressing table of the encoded labels
+    private byte[][] keys;
+    private int[] indices;
+    private int mask;
+    private int size;
+    
+    NominalDictionary() {
+        this(0);
+    }
+    
+    NominalDictionary(Attribute attr) {
+        this(attr.numValues());
+        for (int i = 0; i < attr.numValues(); i++) {
+            insert(attr.value(i).getBytes(StandardCharsets.UTF_8), i);
+        }
+    }
+    
+    private NominalDictionary(int numValues) {
+        int capacity = 2;
+        while (capacity < 2 * numValues) capacity <<= 1;
+        
+        keys = new byte[capacity][];
+        indices = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Get the index of the label encoded in the given buffer range.
+     * @return the label index or -1 if not found
+     */
+    int indexOf(ByteBuffer buffer, int start, int end) {
+        int slot = hash(buffer, start, end) & mask;
+        while (keys[slot] != null) {
+            if (matches(keys[slot], buffer, start, end)) 
+                return indices[slot];
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the index of the value encoded in the given buffer range, adding it if not found.
+     */
+    int add(ByteBuffer buffer, int start, int end) {
+        int index = indexOf(buffer, start, end);
+        if (index < 0) {
+            byte[] key = new byte[end - start];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = buffer.get(start + i);
+            }
+            if (2 * (size + 1) > keys.length) {
+                rehash(keys.length << 1);
+            }
+            index = size;
+            insert(key, index);
+        }
+        return index;
+    }
+    
+    /**
+     * Get the decoded values in the order of their index.
+     */
+    String[] values() {
+        String[] result = new String[size];
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null) {
+                result[indices[slot]] = new String(keys[slot], StandardCharsets.UTF_8);
+            }
+        }
+        return result;
+    }
+    
+    private void insert(byte[] key, int index) {
+        int slot = hash(ByteBuffer.wrap(key), 0, key.length) & mask;
+        while (keys[slot] != null) slot = (slot + 1) & mask;
+        keys[slot] = key;
+        indices[slot] = index;
+        size++;
+    }
+    
+    private void rehash(int capacity) {
+        byte[][] oldKeys = keys;
+        int[] oldIndices = indices;
+        
+        keys = new byte[capacity][];
+        indices = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+        
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != null) {
+                insert(oldKeys[slot], oldIndices[slot]);
+            }
+        }
+    }
+    
+    private static boolean matches(byte[] key, ByteBuffer buffer, int start, int end) {
+        if (key.length != end - start) 
+            return false;
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != buffer.get(start + i)) 
+                return false;
+        }
+        return true;
+    }
+    
+    private static int hash(ByteBuffer buffer, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,437 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import io.nessus.common.AssertArg;
+import io.nessus.weka.UncheckedException;
+import io.nessus.weka.utils.ReadOptions;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ArffLoader.ArffReader;
+
+/**
+ * A parser for large dense ARFF files that splits the memory mapped 
+ * data section at line boundaries and parses the chunks in parallel.
+ * 
+ * Only numeric, nominal and string attributes with plain comma separated values 
+ * are supported. For anything else (e.g. sparse rows, instance weights, escaped 
+ * quotes or date attributes) the parser returns null and the caller is expected 
+ * to fall back to the regular ArffLoader.
+ * 
+ * String values are dictionary encoded per chunk, so that every distinct value 
+ * is decoded once per chunk. The chunk dictionaries are then merged into the 
+ * string values of the attribute, which all instances share.
+ */
+public final class ParallelArffParser {
+
+    // Files smaller than this are not worth the overhead
+    public static final long PARALLEL_THRESHOLD = 32L << 20;
+
+    // Max size of a single mapped region
+    private static final long MAX_CHUNK_SIZE = 1L << 30;
+    
+    // Hide ctor
+    private ParallelArffParser() {
+    }
+    
+    public static boolean isApplicable(Path inpath) {
+        String fileName = inpath.getFileName().toString();
+        return fileName.endsWith(".arff") && inpath.toFile().length() >= PARALLEL_THRESHOLD;
+    }
+    
+    /**
+     * Parse the given ARFF file in parallel.
+     * @return the parsed instances or null if the file is not supported
+     */
+    public static Instances parse(Path inpath) {
+        return parse(inpath, null);
+    }
+    
+    /**
+     * Parse the given ARFF file in parallel. Values of dropped attributes are never parsed.
+     * @return the parsed instances or null if the file is not supported
+     */
+    public static Instances parse(Path inpath, ReadOptions options) {
+        AssertArg.notNull(inpath, "Null inpath");
+        try (FileChannel channel = FileChannel.open(inpath, StandardOpenOption.READ)) {
+            
+            long size = channel.size();
+            long dataStart = findDataSection(channel, size);
+            if (dataStart < 0) return null;
+            
+            Instances structure = readStructure(channel, dataStart);
+            NominalDictionary[] dictionaries = new NominalDictionary[structure.numAttributes()];
+            for (int i = 0; i < structure.numAttributes(); i++) {
+                Attribute attr = structure.attribute(i);
+                if (!attr.isNumeric() && !attr.isNominal() && !attr.isString() || attr.isDate()) 
+                    return null;
+                if (attr.isNominal()) 
+                    dictionaries[i] = new NominalDictionary(attr);
+            }
+            
+            Projection projection = new Projection(structure, options);
+            
+            long[] bounds = chunkBounds(channel, dataStart, size);
+            List<Chunk> chunks = IntStream.range(0, bounds.length - 1).parallel()
+                    .mapToObj(i -> parseChunk(channel, bounds[i], bounds[i + 1], structure, dictionaries, projection))
+                    .collect(Collectors.toList());
+            
+            if (chunks.contains(null)) return null;
+            
+            int numInstances = chunks.stream().mapToInt(c -> c.rows).sum();
+            int numAttributes = projection.getSourceIndices().length;
+            int[] targetIndices = projection.getTargetIndices(structure.numAttributes());
+            
+            Instances result = new Instances(projection.getTarget(), numInstances);
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.set(i, null);
+                int[][] stringIndices = mergeStrings(chunk, result, targetIndices);
+                for (int row = 0; row < chunk.rows; row++) {
+                    int from = row * numAttributes;
+                    double[] values = Arrays.copyOfRange(chunk.values, from, from + numAttributes);
+                    if (stringIndices == null) {
+                        result.add(new DenseInstance(1.0, values));
+                        continue;
+                    }
+                    for (int att = 0; att < numAttributes; att++) {
+                        if (stringIndices[att] != null && !Utils.isMissingValue(values[att])) {
+                            values[att] = stringIndices[att][(int) values[att]];
+                        }
+                    }
+                    Instance inst = projection.project(values, 1.0);
+                    if (inst != null) result.add(inst);
+                }
+            }
+            
+            return result;
+            
+        } catch (IOException | UncheckedIOException ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+
+    /**
+     * Add the string values of the given chunk to the attributes of the result. 
+     * @return the result index of every chunk string index by target attribute or null if there are no strings 
+     */
+    private static int[][] mergeStrings(Chunk chunk, Instances result, int[] targetIndices) {
+        if (!chunk.hasStrings) return null;
+        
+        int[][] stringIndices = new int[result.numAttributes()][];
+        for (int att = 0; att < chunk.strings.length; att++) {
+            if (chunk.strings[att] != null) {
+                Attribute attr = result.attribute(targetIndices[att]);
+                String[] values = chunk.strings[att].values();
+                int[] indices = new int[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    indices[i] = attr.addStringValue(values[i]);
+                }
+                stringIndices[targetIndices[att]] = indices;
+            }
+        }
+        return stringIndices;
+    }
+
+    /**
+     * @return the offset of the first line after @data or -1 if there is none
+     */
+    private static long findDataSection(FileChannel channel, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, Math.min(size, MAX_CHUNK_SIZE));
+        int pos = 0;
+        int limit = buffer.limit();
+        while (pos < limit) {
+            int end = pos;
+            while (end < limit && buffer.get(end) != '\n') end++;
+            String line = ascii(buffer, pos, end).trim().toLowerCase();
+            if (line.startsWith("@data")) {
+                return end + 1L;
+            }
+            pos = end + 1;
+        }
+        return -1;
+    }
+    
+    private static Instances readStructure(FileChannel channel, long dataStart) throws IOException {
+        ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, dataStart);
+        byte[] bytes = new byte[(int) dataStart];
+        buffer.get(bytes);
+        String header = new String(bytes, StandardCharsets.UTF_8);
+        ArffReader reader = new ArffReader(new StringReader(header), 0);
+        return reader.getStructure();
+    }
+    
+    private static long[] chunkBounds(FileChannel channel, long dataStart, long size) throws IOException {
+        long length = size - dataStart;
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        long numChunks = Math.max(parallelism * 4L, (length + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+        long chunkSize = Math.max(1, length / numChunks);
+        
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(dataStart);
+        long pos = dataStart + chunkSize;
+        while (pos < size) {
+            long next = nextLine(channel, pos, size);
+            if (next > bounds.get(bounds.size() - 1)) {
+                bounds.add(next);
+            }
+            pos = next + chunkSize;
+        }
+        if (bounds.get(bounds.size() - 1) < size) {
+            bounds.add(size);
+        }
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+    
+    private static long nextLine(FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (pos < size) {
+            ((Buffer) buffer).clear();
+            int read = channel.read(buffer, pos);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') 
+                    return pos + i + 1;
+            }
+            pos += read;
+        }
+        return size;
+    }
+    
+    private static Chunk parseChunk(FileChannel channel, long start, long end, Instances structure, NominalDictionary[] dictionaries, Projection projection) {
+        try {
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, start, end - start);
+            int[] targetIndices = projection.getTargetIndices(dictionaries.length);
+            Chunk chunk = new Chunk(projection.getSourceIndices().length, dictionaries.length);
+            for (int i = 0; i < dictionaries.length; i++) {
+                if (targetIndices[i] >= 0 && structure.attribute(i).isString()) {
+                    chunk.strings[i] = new NominalDictionary();
+                    chunk.hasStrings = true;
+                }
+            }
+            
+            int pos = 0;
+            int limit = buffer.limit();
+            while (pos < limit) {
+                int eol = pos;
+                while (eol < limit && buffer.get(eol) != '\n') eol++;
+                
+                int from = skipBlanks(buffer, pos, eol);
+                if (from < eol && buffer.get(from) != '%') {
+                    if (buffer.get(from) == '{' || !parseLine(buffer, from, eol, dictionaries, projection, targetIndices, chunk)) 
+                        return null;
+                }
+                
+                pos = eol + 1;
+            }
+            
+            return chunk;
+            
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    
+    private static boolean parseLine(ByteBuffer buffer, int from, int eol, NominalDictionary[] dictionaries, Projection projection, int[] targetIndices, Chunk chunk) {
+        int numAttributes = dictionaries.length;
+        int offset = chunk.ensureRow();
+        
+        int att = 0;
+        int pos = from;
+        while (pos <= eol && att < numAttributes) {
+            
+            // Find the end of the field, honoring quotes
+            int end = pos;
+            byte quote = 0;
+            while (end < eol) {
+                byte ch = buffer.get(end);
+                if (quote != 0) {
+                    if (ch == '\\') return false;
+                    if (ch == quote) quote = 0;
+                } else if (ch == '\'' || ch == '"') {
+                    quote = ch;
+                } else if (ch == ',') {
+                    break;
+                }
+                end++;
+            }
+            
+            // Skip the values of dropped attributes
+            if (targetIndices[att] < 0) {
+                att++;
+                pos = end + 1;
+                continue;
+            }
+            
+            int start = skipBlanks(buffer, pos, end);
+            int stop = end;
+            while (stop > start && isBlank(buffer.get(stop - 1))) stop--;
+            
+            double value;
+            if (start == stop) {
+                return false;
+            } else if (stop - start == 1 && buffer.get(start) == '?') {
+                value = Utils.missingValue();
+            } else {
+                NominalDictionary dictionary = dictionaries[att];
+                NominalDictionary strings = chunk.strings[att];
+                if (dictionary != null || strings != null) {
+                    byte first = buffer.get(start);
+                    if (stop - start >= 2 && (first == '\'' || first == '"') && buffer.get(stop - 1) == first) {
+                        start++;
+                        stop--;
+                    }
+                    int index = dictionary != null ? dictionary.indexOf(buffer, start, stop) : strings.add(buffer, start, stop);
+                    if (index < 0) return false;
+                    value = index;
+                } else {
+                    value = parseNumber(buffer, start, stop);
+                    if (Double.isNaN(value)) return false;
+                }
+            }
+            
+            chunk.values[offset + targetIndices[att++]] = value;
+            pos = end + 1;
+        }
+        
+        if (att != numAttributes || pos <= eol && skipBlanks(buffer, pos, eol) < eol) 
+            return false;
+        
+        // Rows with string values are filtered after the chunk strings are merged
+        if (projection.hasRowFilter() && !chunk.hasStrings) {
+            double[] values = Arrays.copyOfRange(chunk.values, offset, offset + chunk.numAttributes);
+            if (projection.project(values, 1.0) == null) 
+                return true;
+        }
+        
+        chunk.rows++;
+        return true;
+    }
+    
+    /**
+     * Parse plain decimals directly from the bytes. The result is exact as long as the
+     * mantissa fits into 53 bits and the power of ten is exactly representable.
+     * @return the value or NaN if the token is not a valid number 
+     */
+    private static double parseNumber(ByteBuffer buffer, int start, int stop) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < stop && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+            negative = buffer.get(pos++) == '-';
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        while (pos < stop) {
+            byte ch = buffer.get(pos);
+            if (ch >= '0' && ch <= '9') {
+                mantissa = 10 * mantissa + (ch - '0');
+                if (scale >= 0) scale++;
+                if (++digits > 15) break;
+            } else if (ch == '.' && scale < 0) {
+                scale = 0;
+            } else {
+                break;
+            }
+            pos++;
+        }
+        if (pos == stop && digits > 0) {
+            double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(ascii(buffer, start, stop));
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+    
+    private static final double[] POWERS_OF_TEN = new double[16];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    
+    private static int skipBlanks(ByteBuffer buffer, int pos, int end) {
+        while (pos < end && isBlank(buffer.get(pos))) pos++;
+        return pos;
+    }
+    
+    private static boolean isBlank(byte ch) {
+        return ch == ' ' || ch == '\t' || ch == '\r';
+    }
+    
+    private static String ascii(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+    
+    /**
+     * Row-major primitive buffer for the instances of one chunk. 
+     * String values are stored as their index in the chunk dictionary.
+     */
+    private static class Chunk {
+        
+        final int numAttributes;
+        final NominalDictionary[] strings;
+        boolean hasStrings;
+        double[] values;
+        int rows;
+        
+        Chunk(int numAttributes, int numSourceAttributes) {
+            this.numAttributes = numAttributes;
+            this.strings = new NominalDictionary[numSourceAttributes];
+            this.values = new double[Math.max(1, numAttributes) * 1024];
+        }
+        
+        int ensureRow() {
+            int offset = rows * numAttributes;
+            if (offset + numAttributes > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, offset + numAttributes));
+            }
+            return offset;
+        }
+    }
+}
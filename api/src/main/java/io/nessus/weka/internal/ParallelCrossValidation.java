@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import io.nessus.common.AssertArg;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.core.Instances;
+
+/**
+ * Cross-validation with the fold classifiers built in parallel.
+ * 
+ * The folds are evaluated in fold order, so the statistics match a sequential run.
+ */
+public final class ParallelCrossValidation {
+
+    // Hide ctor
+    private ParallelCrossValidation() {
+    }
+    
+    public static void crossValidateModel(Evaluation evaluation, Classifier classifier, Instances data, int numFolds, Random random) throws Exception {
+        AssertArg.notNull(evaluation, "Null evaluation");
+        AssertArg.notNull(classifier, "Null classifier");
+        AssertArg.notNull(data, "Null data");
+        AssertArg.notNull(random, "Null random");
+        
+        if (!ParallelTasks.canShare(data)) {
+            evaluation.crossValidateModel(classifier, data, numFolds, random);
+            return;
+        }
+        
+        CrossValidationFolds folds = new CrossValidationFolds(data, numFolds, random);
+        
+        // Fold classifiers are built on the task pool, because the builds block
+        List<Callable<Classifier>> tasks = new ArrayList<>(numFolds);
+        for (int i = 0; i < numFolds; i++) {
+            int fold = i;
+            tasks.add(() -> folds.buildClassifier(classifier, fold));
+        }
+        List<Classifier> classifiers = ParallelTasks.invokeAll(tasks, true);
+        
+        for (int i = 0; i < numFolds; i++) {
+            folds.evaluate(evaluation, classifiers.get(i), i);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.nessus.common.AssertArg;
+import io.nessus.weka.UncheckedException;
+import weka.core.Instances;
+
+/**
+ * Runs blocking tasks on a shared bounded thread pool.
+ * 
+ * Building a classifier can take a long time and may itself use the common 
+ * ForkJoin pool, so such tasks should not occupy the threads of that pool. 
+ * Tasks that are submitted from a pool thread run on the calling thread.
+ */
+public final class ParallelTasks {
+
+    private static final ThreadLocal<Boolean> POOL_THREAD = ThreadLocal.withInitial(() -> false);
+    
+    // Hide ctor
+    private ParallelTasks() {
+    }
+    
+    /**
+     * True if tasks can share the given instances. Classifiers and filters 
+     * may add string values to the shared header.
+     */
+    public static boolean canShare(Instances data) {
+        return !data.checkForStringAttributes();
+    }
+    
+    /**
+     * Run the given tasks on the shared pool, or one after the other on the calling thread.
+     * @return the results in the order of the tasks
+     */
+    public static <T> List<T> invokeAll(List<Callable<T>> tasks, boolean parallel) {
+        AssertArg.notNull(tasks, "Null tasks");
+        
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            
+            if (!parallel || POOL_THREAD.get()) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+                return results;
+            }
+            
+            List<Future<T>> futures = new ArrayList<>(tasks.size());
+            try {
+                for (Callable<T> task : tasks) {
+                    futures.add(Pool.EXECUTOR.submit(task));
+                }
+                for (Future<T> future : futures) {
+                    results.add(future.get());
+                }
+            } finally {
+                futures.forEach(future -> future.cancel(true));
+            }
+            
+        } catch (ExecutionException ex) {
+            throw UncheckedException.create(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw UncheckedException.create(ex);
+        } catch (Exception ex) {
+            throw UncheckedException.create(ex);
+        }
+        return results;
+    }
+    
+    // Created on first use
+    private static class Pool {
+        
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(() -> {
+                POOL_THREAD.set(true);
+                runnable.run();
+            }, "nessus-tasks");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
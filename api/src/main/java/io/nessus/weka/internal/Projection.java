@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+import io.nessus.common.AssertArg;
+import io.nessus.weka.utils.ReadOptions;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Projects source rows onto the kept attributes and applies the row filter.
+ */
+public class Projection {
+
+    private final Instances target;
+    private final int[] sourceIndices;
+    private final Predicate<Instance> rowFilter;
+    
+    public Projection(Instances source, ReadOptions options) {
+        AssertArg.notNull(source, "Null source");
+        
+        ReadOptions opts = options != null ? options : new ReadOptions();
+        sourceIndices = opts.getAttributeIndices(source);
+        rowFilter = opts.getRowFilter();
+        
+        ArrayList<Attribute> atts = new ArrayList<>(sourceIndices.length);
+        for (int idx : sourceIndices) {
+            atts.add((Attribute) source.attribute(idx).copy());
+        }
+        
+        target = new Instances(source.relationName(), atts, 0);
+        for (int i = 0; i < sourceIndices.length; i++) {
+            if (sourceIndices[i] == source.classIndex()) {
+                target.setClassIndex(i);
+            }
+        }
+    }
+    
+    /**
+     * The empty target structure that projected instances refer to.
+     */
+    public Instances getTarget() {
+        return target;
+    }
+    
+    public boolean hasRowFilter() {
+        return rowFilter != null;
+    }
+    
+    /**
+     * The sorted indices of the kept source attributes.
+     */
+    public int[] getSourceIndices() {
+        return sourceIndices;
+    }
+    
+    /**
+     * Maps every source attribute to its index in the target or -1 if dropped.
+     */
+    public int[] getTargetIndices(int numSourceAttributes) {
+        int[] result = new int[numSourceAttributes];
+        Arrays.fill(result, -1);
+        for (int i = 0; i < sourceIndices.length; i++) {
+            result[sourceIndices[i]] = i;
+        }
+        return result;
+    }
+    
+    /**
+     * Project the given source instance.
+     * @return the projected instance or null if rejected by the row filter
+     */
+    public Instance project(Instance source) {
+        double[] values = new double[sourceIndices.length];
+        for (int i = 0; i < sourceIndices.length; i++) {
+            int idx = sourceIndices[i];
+            Attribute attr = target.attribute(i);
+            if (attr.isString() && !source.isMissing(idx)) {
+                values[i] = attr.addStringValue(source.stringValue(idx));
+            } else {
+                values[i] = source.value(idx);
+            }
+        }
+        return project(values, source.weight());
+    }
+    
+    /**
+     * Wrap the given already projected values.
+     * @return the projected instance or null if rejected by the row filter
+     */
+    public Instance project(double[] values, double weight) {
+        Instance result = new DenseInstance(weight, values);
+        result.setDataset(target);
+        return accept(result) ? result : null;
+    }
+    
+    /**
+     * True if the given projected instance passes the row filter.
+     */
+    public boolean accept(Instance inst) {
+        return rowFilter == null || rowFilter.test(inst);
+    }
+    
+    /**
+     * Project all instances of the given source. 
+     */
+    public Instances apply(Instances source) {
+        Instances result = new Instances(target, source.numInstances());
+        for (Instance inst : source) {
+            Instance projected = project(inst);
+            if (projected != null) result.add(projected);
+        }
+        return result;
+    }
+}
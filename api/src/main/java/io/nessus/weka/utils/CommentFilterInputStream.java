@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that drops every line that starts with the given comment character.
+ * 
+ * Lines are filtered on the fly, so there is no need to hold a full copy of the source
+ * in memory. The comment character must be a single byte character (e.g. '#'), which
+ * makes the filter safe for ASCII compatible encodings like UTF-8.
+ */
+public class CommentFilterInputStream extends FilterInputStream {
+
+    private final byte commentChar;
+    private final byte[] single = new byte[1];
+    
+    private boolean lineStart = true;
+    private boolean comment;
+    
+    public CommentFilterInputStream(InputStream input) {
+        this(input, '#');
+    }
+
+    public CommentFilterInputStream(InputStream input, char commentChar) {
+        super(input);
+        this.commentChar = (byte) commentChar;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(single, 0, 1);
+        return read < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int count = 0;
+        while (count == 0) {
+            int read = in.read(buffer, off, len);
+            if (read < 0) return -1;
+            for (int i = off; i < off + read; i++) {
+                byte ch = buffer[i];
+                if (lineStart) comment = ch == commentChar;
+                lineStart = ch == '\n';
+                if (!comment) buffer[off + count++] = ch;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 1024)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (read < 0) break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
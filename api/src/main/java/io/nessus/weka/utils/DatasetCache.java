@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.function.Function;
+
+import io.nessus.common.AssertArg;
+import io.nessus.weka.UncheckedException;
+import weka.core.Instances;
+
+/**
+ * A cache of parsed datasets with a memory budget and LRU eviction.
+ * 
+ * Entries are keyed by canonical path, size and last modified time, so that a 
+ * changed file is read again.
+ */
+public class DatasetCache extends InstancesCache<DatasetCache.Key> {
+
+    public static final long DEFAULT_BUDGET = 256L << 20;
+    
+    public DatasetCache() {
+        this(DEFAULT_BUDGET);
+    }
+    
+    public DatasetCache(long budget) {
+        super(budget);
+    }
+
+    /**
+     * Get the cached instances for the given path or load them with the given function.
+     */
+    public Instances get(Path inpath, Function<Path, Instances> loader) {
+        AssertArg.notNull(inpath, "Null inpath");
+        AssertArg.notNull(loader, "Null loader");
+        return get(Key.create(inpath), () -> loader.apply(inpath));
+    }
+
+    // Drop entries for an outdated version of the file
+    @Override
+    protected void beforePut(Key key) {
+        removeIf(other -> other.path.equals(key.path));
+    }
+    
+    static class Key {
+        
+        final Path path;
+        final long length;
+        final long lastModified;
+        
+        static Key create(Path inpath) {
+            try {
+                Path path = inpath.toRealPath();
+                long length = Files.size(path);
+                long lastModified = Files.getLastModifiedTime(path).toMillis();
+                return new Key(path, length, lastModified);
+            } catch (IOException ex) {
+                throw UncheckedException.create(ex);
+            }
+        }
+        
+        Key(Path path, long length, long lastModified) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, length, lastModified);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return path.equals(other.path) && length == other.length && lastModified == other.lastModified;
+        }
+    }
+}
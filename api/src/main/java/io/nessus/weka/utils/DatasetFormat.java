@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import io.nessus.common.AssertArg;
+
+/**
+ * The text formats that can be detected from a small header prefix.
+ */
+public enum DatasetFormat {
+    
+    ARFF, SPARSE_ARFF, CSV;
+    
+    static final int PREFIX_LENGTH = 8192;
+    
+    public boolean isArff() {
+        return this == ARFF || this == SPARSE_ARFF;
+    }
+    
+    /**
+     * Wrap the given input such that it supports mark/reset and 
+     * transparently decompresses gzip content.
+     */
+    public static InputStream unwrap(InputStream input) throws IOException {
+        AssertArg.notNull(input, "Null input");
+        
+        input = buffered(input);
+        
+        input.mark(2);
+        int b1 = input.read();
+        int b2 = input.read();
+        input.reset();
+        
+        boolean gzip = b1 == 0x1f && b2 == 0x8b;
+        return gzip ? buffered(new GZIPInputStream(input)) : input;
+    }
+    
+    /**
+     * Detect the format from a header prefix of the given input.
+     * 
+     * The input must support mark/reset and is left at its start position.
+     * Input that does not start with an ARFF @relation is assumed to be CSV.
+     */
+    public static DatasetFormat detect(InputStream input) throws IOException {
+        AssertArg.isTrue(input.markSupported(), "Mark not supported");
+        
+        byte[] prefix = new byte[PREFIX_LENGTH];
+        input.mark(PREFIX_LENGTH);
+        int len = 0;
+        try {
+            int read = input.read(prefix, 0, PREFIX_LENGTH);
+            while (read > 0 && (len += read) < PREFIX_LENGTH) {
+                read = input.read(prefix, len, PREFIX_LENGTH - len);
+            }
+        } finally {
+            input.reset();
+        }
+        
+        boolean arff = false;
+        boolean data = false;
+        String text = new String(prefix, 0, len, StandardCharsets.ISO_8859_1);
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("%") || line.startsWith("#")) 
+                continue;
+            
+            String lower = line.toLowerCase();
+            if (!arff) {
+                if (!lower.startsWith("@relation")) 
+                    return CSV;
+                arff = true;
+            } else if (!data) {
+                data = lower.startsWith("@data");
+            } else {
+                return line.startsWith("{") ? SPARSE_ARFF : ARFF;
+            }
+        }
+        
+        return arff ? ARFF : CSV;
+    }
+    
+    private static InputStream buffered(InputStream input) {
+        return input.markSupported() ? input : new BufferedInputStream(input);
+    }
+}
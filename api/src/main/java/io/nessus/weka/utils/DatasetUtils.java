@@ -19,28 +19,43 @@
  */
 package io.nessus.weka.utils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.lang.reflect.Modifier;
 import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import io.nessus.common.AssertArg;
 import io.nessus.common.AssertState;
 import io.nessus.weka.UncheckedException;
+import io.nessus.weka.internal.BinaryFormat;
+import io.nessus.weka.internal.FilterPipeline;
+import io.nessus.weka.internal.InstanceIterator;
+import io.nessus.weka.internal.ParallelArffParser;
+import io.nessus.weka.internal.ParallelTasks;
+import io.nessus.weka.internal.Projection;
 import weka.classifiers.Classifier;
+import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.OptionHandler;
 import weka.core.converters.ArffLoader;
@@ -52,30 +67,220 @@ import weka.filters.Filter;
 
 public class DatasetUtils {
 
+    private static final List<String> OPERATOR_PACKAGES = Arrays.asList(
+            "weka.filters.supervised.attribute",
+            "weka.filters.supervised.instance",
+            "weka.filters.unsupervised.attribute",
+            "weka.filters.unsupervised.instance",
+            "weka.filters",
+            "weka.classifiers.bayes",
+            "weka.classifiers.functions",
+            "weka.classifiers.lazy",
+            "weka.classifiers.rules",
+            "weka.classifiers.trees",
+            "weka.classifiers");
+    
+    // The resolved operator classes by type and short name
+    private static final Map<String, Class<?>> resolvedClasses = new ConcurrentHashMap<>();
+    
+    private static volatile DatasetCache datasetCache;
+    private static volatile FilterCache filterCache;
+    private static volatile Executor ioExecutor;
+    private static volatile long slotBudget = Runtime.getRuntime().maxMemory() / 4;
+    
     // Hide ctor
     private DatasetUtils() {
     }
     
+    /**
+     * Set the cache that is used when reading a path or file URL.
+     * A null cache disables caching.
+     */
+    public static void setDatasetCache(DatasetCache cache) {
+        datasetCache = cache;
+    }
+    
+    public static DatasetCache getDatasetCache() {
+        return datasetCache;
+    }
+    
+    /**
+     * Set the cache that is used for the results of applyFilter.
+     * A null cache disables caching.
+     */
+    public static void setFilterCache(FilterCache cache) {
+        filterCache = cache;
+    }
+    
+    public static FilterCache getFilterCache() {
+        return filterCache;
+    }
+    
+    /**
+     * Set the default memory budget for the named slots of a dataset.
+     */
+    public static void setSlotBudget(long budget) {
+        AssertArg.isTrue(budget > 0, "Invalid budget: " + budget);
+        slotBudget = budget;
+    }
+    
+    /**
+     * Get the default memory budget for the named slots of a dataset.
+     * The default is a quarter of the maximum heap size.
+     */
+    public static long getSlotBudget() {
+        return slotBudget;
+    }
+    
+    /**
+     * Set the executor that runs asynchronous reads and writes.
+     * A null executor restores the default.
+     */
+    public static void setIOExecutor(Executor executor) {
+        ioExecutor = executor;
+    }
+    
+    /**
+     * Get the executor that runs asynchronous reads and writes.
+     * The default is a cached pool of daemon threads.
+     */
+    public static Executor getIOExecutor() {
+        Executor executor = ioExecutor;
+        if (executor == null) {
+            synchronized (DatasetUtils.class) {
+                if (ioExecutor == null) {
+                    ioExecutor = Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "nessus-weka-io");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                executor = ioExecutor;
+            }
+        }
+        return executor;
+    }
+    
     public static Instances read(URL url) {
         return readInternal(url);
     }
     
     public static Instances read(Path inpath) {
-        return readInternal(inpath);
+        return readCached(inpath);
     }
 
     public static Instances read(String inpath) {
-        return readInternal(Paths.get(inpath));
+        return readCached(Paths.get(inpath));
     }
 
     public static Instances read(InputStream input) {
-        return readInternal(input);
+        return readInternal(input, null);
+    }
+    
+    /**
+     * Read all files in the given directory that match the glob pattern in parallel
+     * and concatenate them in file name order. The files must have compatible headers.
+     */
+    public static Instances read(Path indir, String glob) {
+        AssertArg.notNull(indir, "Null indir");
+        AssertArg.notNull(glob, "Null glob");
+        
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(indir, glob)) {
+            stream.forEach(paths::add);
+        } catch (IOException ex) {
+            throw UncheckedException.create(ex);
+        }
+        
+        AssertState.isFalse(paths.isEmpty(), "No files matching '" + glob + "' in: " + indir);
+        Collections.sort(paths);
+        
+        List<Instances> parts = paths.parallelStream()
+                .map(path -> readCached(path))
+                .collect(Collectors.toList());
+        
+        return InstancesUtils.merge(parts);
+    }
+    
+    /**
+     * Read the given path, keeping only the selected attributes and matching rows.
+     */
+    public static Instances read(Path inpath, ReadOptions options) {
+        return readInternal(inpath, options);
+    }
+
+    /**
+     * Read the given path, keeping only the selected attributes and matching rows.
+     */
+    public static Instances read(String inpath, ReadOptions options) {
+        return readInternal(Paths.get(inpath), options);
+    }
+
+    /**
+     * Read the given input, keeping only the selected attributes and matching rows.
+     */
+    public static Instances read(InputStream input, ReadOptions options) {
+        return readInternal(input, options);
+    }
+    
+    /**
+     * Read the header of the given input without its instances.
+     */
+    public static Instances readStructure(InputStream input) {
+        try {
+            Loader loader = createLoader(input);
+            return loader.getStructure();
+        } catch (IOException ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+    
+    /**
+     * Stream the instances from the given path one at a time.
+     * All instances share the same header. Close the stream to release the source.
+     */
+    public static Stream<Instance> stream(Path inpath) {
+        return streamInternal(inpath);
+    }
+    
+    /**
+     * Stream the instances from the given path one at a time.
+     * All instances share the same header. Close the stream to release the source.
+     */
+    public static Stream<Instance> stream(String inpath) {
+        return streamInternal(Paths.get(inpath));
+    }
+    
+    /**
+     * Stream the instances from the given input one at a time.
+     * All instances share the same header. Close the stream to release the source.
+     */
+    public static Stream<Instance> stream(InputStream input) {
+        return streamInternal(input);
+    }
+    
+    public static CompletableFuture<Instances> readAsync(Path inpath) {
+        return readAsync(inpath, getIOExecutor());
+    }
+    
+    public static CompletableFuture<Instances> readAsync(Path inpath, Executor executor) {
+        AssertArg.notNull(executor, "Null executor");
+        return CompletableFuture.supplyAsync(() -> read(inpath), executor);
     }
     
     public static void write(Instances instances, Path outpath) {
         writeInternal(instances, outpath);
     }
     
+    public static CompletableFuture<Void> writeAsync(Instances instances, Path outpath) {
+        return writeAsync(instances, outpath, getIOExecutor());
+    }
+    
+    public static CompletableFuture<Void> writeAsync(Instances instances, Path outpath, Executor executor) {
+        AssertArg.notNull(executor, "Null executor");
+        return CompletableFuture.runAsync(() -> writeInternal(instances, outpath), executor);
+    }
+    
     public static Instances applyFilter(Instances instances, String filterSpec) {
         return applyFilter(instances, new OperatorSpec(filterSpec));
     }
@@ -85,9 +290,16 @@ public class DatasetUtils {
     }
 
     public static Instances applyFilter(Instances instances, OperatorSpec spec) {
+        FilterCache cache = filterCache;
+        if (cache != null) {
+            return cache.get(instances, spec, () -> applyFilterInternal(instances, spec));
+        }
+        return applyFilterInternal(instances, spec);
+    }
+
+    private static Instances applyFilterInternal(Instances instances, OperatorSpec spec) {
         try {
-            Filter filter = loadInstance(spec.getName(), Filter.class);
-            filter.setOptions(spec.getOptions());
+            Filter filter = createFilter(spec);
             filter.setInputFormat(instances);
             instances = Filter.useFilter(instances, filter);
             return instances;
@@ -96,6 +308,55 @@ public class DatasetUtils {
         }
     }
 
+    /**
+     * Apply the given filters in sequence. Consecutive streamable filters 
+     * are applied in a single pass without intermediate datasets.
+     */
+    public static Instances applyFilters(Instances instances, List<String> filterSpecs) {
+        return applyFilters(instances, filterSpecs, false);
+    }
+
+    /**
+     * Apply the given filters in sequence. In parallel mode, streamable filters
+     * run on chunks of a large dataset in parallel.
+     */
+    public static Instances applyFilters(Instances instances, List<String> filterSpecs, boolean parallel) {
+        AssertArg.notNull(filterSpecs, "Null filterSpecs");
+        
+        List<OperatorSpec> specs = new ArrayList<>();
+        for (String filterSpec : filterSpecs) {
+            specs.add(new OperatorSpec(filterSpec));
+        }
+        
+        FilterCache cache = filterCache;
+        if (cache != null) {
+            return cache.get(instances, specs, () -> applyFiltersInternal(instances, specs, parallel));
+        }
+        return applyFiltersInternal(instances, specs, parallel);
+    }
+
+    private static Instances applyFiltersInternal(Instances instances, List<OperatorSpec> specs, boolean parallel) {
+        try {
+            List<Filter> filters = new ArrayList<>();
+            for (OperatorSpec spec : specs) {
+                filters.add(createFilter(spec));
+            }
+            return new FilterPipeline(filters, parallel).apply(instances);
+        } catch (Exception ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+
+    public static Filter createFilter(OperatorSpec spec) {
+        try {
+            Filter filter = loadInstance(spec.getName(), Filter.class);
+            filter.setOptions(spec.getOptions());
+            return filter;
+        } catch (Exception ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+
     public static Classifier buildClassifier(Instances instances, String classifierSpec) {
         return buildClassifier(instances, new OperatorSpec(classifierSpec));
     }
@@ -105,34 +366,92 @@ public class DatasetUtils {
     }
     
     public static Classifier buildClassifier(Instances instances, OperatorSpec spec) {
+        try {
+            Classifier classifier = createClassifier(spec);
+            classifier.buildClassifier(instances);
+            return classifier;
+        } catch (Exception ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+    
+    /**
+     * Build the given classifiers concurrently on the given instances.
+     * 
+     * The builds run one after the other if the instances have string attributes.
+     * @return the classifiers by spec, in the given order
+     */
+    public static Map<String, Classifier> buildClassifiers(Instances instances, String... classifierSpecs) {
+        AssertArg.notNull(instances, "Null instances");
+        AssertArg.notNull(classifierSpecs, "Null classifierSpecs");
+        
+        List<String> specs = Arrays.stream(classifierSpecs).distinct().collect(Collectors.toList());
+        List<Callable<Classifier>> tasks = new ArrayList<>(specs.size());
+        for (String spec : specs) {
+            tasks.add(() -> buildClassifier(new Instances(instances), spec));
+        }
+        
+        List<Classifier> classifiers = ParallelTasks.invokeAll(tasks, ParallelTasks.canShare(instances));
+        
+        Map<String, Classifier> result = new LinkedHashMap<>();
+        for (int i = 0; i < specs.size(); i++) {
+            result.put(specs.get(i), classifiers.get(i));
+        }
+        return result;
+    }
+    
+    public static Classifier createClassifier(OperatorSpec spec) {
         try {
             Classifier classifier = loadInstance(spec.getName(), Classifier.class);
             ((OptionHandler) classifier).setOptions(spec.getOptions());
-            classifier.buildClassifier(instances);
             return classifier;
         } catch (Exception ex) {
             throw UncheckedException.create(ex);
         }
     }
     
-    private static Instances readInternal(Path inpath) {
+    private static Instances readCached(Path inpath) {
+        DatasetCache cache = datasetCache;
+        if (cache != null) {
+            return cache.get(inpath, path -> readInternal(path, null));
+        }
+        return readInternal(inpath, null);
+    }
+    
+    private static Instances readInternal(Path inpath, ReadOptions options) {
         try {
             
             Instances instances = null;
             
-            // https://github.com/tdiesler/weka-3.8/issues/6
             String fileName = inpath.getFileName().toString();
-            if (instances == null && fileName.endsWith(".csv")) {
+            if (BinaryFormat.isBinaryFormat(inpath)) {
                 
-                try (InputStream input = new FileInputStream(inpath.toFile())) {
-                    instances = readInternal(input);
-                }
+                instances = BinaryFormat.read(inpath, options);
                 
-            } else {
+            } else if (ParallelArffParser.isApplicable(inpath)) {
                 
-                DataSource source = new DataSource(inpath.toString()); 
-                instances = source.getDataSet();
+                instances = ParallelArffParser.parse(inpath, options);
+            }
+            
+            if (instances == null) {
                 
+                boolean streamable = fileName.endsWith(".csv") || fileName.endsWith(".gz") || options != null && fileName.endsWith(".arff");
+                if (streamable) {
+                    
+                    // https://github.com/tdiesler/weka-3.8/issues/6
+                    try (InputStream input = new FileInputStream(inpath.toFile())) {
+                        instances = readInternal(input, options);
+                    }
+                    
+                } else {
+                    
+                    DataSource source = new DataSource(inpath.toString()); 
+                    instances = source.getDataSet();
+                    
+                    if (options != null) {
+                        instances = new Projection(instances, options).apply(instances);
+                    }
+                }
             }
             
             return instances;
@@ -159,63 +478,86 @@ public class DatasetUtils {
         }
     }
     
-    private static Instances readInternal(InputStream input) {
-        
-        Instances instances = null;
-        
+    private static Instances readInternal(InputStream input, ReadOptions options) {
         try {
             
-            // https://github.com/tdiesler/weka-3.8/issues/6
-            input = new BufferedInputStream(input);
-            input.mark(10240);
-            
-            // First try .arff
-            try {
-                Loader loader = new ArffLoader();
-                loader.setSource(input);
-                loader.getStructure();
-                instances = loader.getDataSet();
-            } catch (IOException ex) {
-                String exmsg = ex.getMessage();
-                if (!exmsg.contains("Unable to determine structure as arff")) {
-                    throw ex;
-                }
-                input.reset();
+            Loader loader = createLoader(input);
+            if (options == null) {
+                return loader.getDataSet();
             }
             
-            // Next try .csv
-            if (instances == null) {
-
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(baos));
-                
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
-                    String line = br.readLine();
-                    while (line != null) {
-                        if (!line.startsWith("#")) {
-                            bw.write(line);
-                            bw.newLine();
-                        }
-                        line = br.readLine();
-                    }
-                    bw.flush();
-                }
-
-                input = new ByteArrayInputStream(baos.toByteArray());
-                
-                Loader loader = new CSVLoader();
-                loader.setSource(input);
-                instances = loader.getDataSet();
+            // Project the instances one at a time
+            Instances structure = loader.getStructure();
+            Projection projection = new Projection(structure, options);
+            Instances instances = projection.getTarget();
+            Instance inst = loader.getNextInstance(structure);
+            while (inst != null) {
+                Instance projected = projection.project(inst);
+                if (projected != null) instances.add(projected);
+                inst = loader.getNextInstance(structure);
             }
             
+            instances.compactify();
+            return instances;
+            
         } catch (Exception ex) {
             throw UncheckedException.create(ex);
         }
+    }
+    
+    private static Stream<Instance> streamInternal(Path inpath) {
+        try {
+            InputStream input = new FileInputStream(inpath.toFile());
+            try {
+                return streamInternal(input);
+            } catch (RuntimeException ex) {
+                input.close();
+                throw ex;
+            }
+        } catch (IOException ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+    
+    private static Stream<Instance> streamInternal(InputStream input) {
+        try {
+            Loader loader = createLoader(input);
+            Instances structure = InstancesUtils.assignClassIndex(loader.getStructure());
+            InstanceIterator itr = new InstanceIterator(loader, structure, input);
+            Spliterator<Instance> spliterator = Spliterators.spliteratorUnknownSize(itr, Spliterator.ORDERED | Spliterator.NONNULL);
+            return StreamSupport.stream(spliterator, false).onClose(itr::close);
+        } catch (Exception ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+    
+    /**
+     * Create a loader for the given input that has already read the structure.
+     */
+    private static Loader createLoader(InputStream input) throws IOException {
+        
+        input = DatasetFormat.unwrap(input);
+        DatasetFormat format = DatasetFormat.detect(input);
+        
+        Loader loader;
+        if (format.isArff()) {
+            loader = new ArffLoader();
+        } else {
+            // https://github.com/tdiesler/weka-3.8/issues/6
+            input = new CommentFilterInputStream(input, '#');
+            loader = new CSVLoader();
+        }
         
-        return instances;
+        loader.setSource(input);
+        loader.getStructure();
+        return loader;
     }
     
     private static void writeInternal(Instances instances, Path outpath) {
+        if (BinaryFormat.isBinaryFormat(outpath)) {
+            BinaryFormat.write(instances, outpath);
+            return;
+        }
         try {
             DataSink.write(outpath.toString(), instances);
         } catch (Exception ex) {
@@ -223,43 +565,42 @@ public class DatasetUtils {
         }
     }
     
-    @SuppressWarnings("unchecked")
     private static <T extends Object> T loadInstance(String name, Class<T> type) {
         
-        List<String> packages = Arrays.asList(
-                "weka.filters.supervised.attribute",
-                "weka.filters.supervised.instance",
-                "weka.filters.unsupervised.attribute",
-                "weka.filters.unsupervised.instance",
-                "weka.filters",
-                "weka.classifiers.bayes",
-                "weka.classifiers.functions",
-                "weka.classifiers.lazy",
-                "weka.classifiers.rules",
-                "weka.classifiers.trees",
-                "weka.classifiers");
+        // Resolve the short name once per type
+        Class<?> clazz = resolvedClasses.computeIfAbsent(type.getName() + ":" + name, key -> resolveClass(name, type));
         
-        List<T> instances = new ArrayList<>();
+        try {
+            return type.cast(clazz.newInstance());
+        } catch (InstantiationException | IllegalAccessException ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+    
+    private static Class<?> resolveClass(String name, Class<?> type) {
         
-        for (String packageName : packages) {
+        List<Class<?>> classes = new ArrayList<>();
+        
+        for (String packageName : OPERATOR_PACKAGES) {
             ClassLoader loader = type.getClassLoader();
             try {
                 Class<?> clazz = loader.loadClass(packageName + "." + name);
-                T filter = (T) clazz.newInstance();
-                instances.add(filter);
-            } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+                if (type.isAssignableFrom(clazz) && !Modifier.isAbstract(clazz.getModifiers())) {
+                    classes.add(clazz);
+                }
+            } catch (ClassNotFoundException e) {
                 // ignore
             }
         }
         
-        List<String> fqnames = instances.stream()
-                .map(f -> f.getClass().getName())
+        List<String> fqnames = classes.stream()
+                .map(Class::getName)
                 .collect(Collectors.toList());
         
         AssertState.isFalse(fqnames.isEmpty(), "Cannot obtain " + type.getSimpleName() + " for name: " + name);
         AssertState.isEqual(1, fqnames.size(), "Ambiguous " + type.getSimpleName() + " name: " + fqnames);
         
-        return instances.get(0);
+        return classes.get(0);
     }
     
     public static class OperatorSpec {
@@ -290,6 +631,19 @@ public class DatasetUtils {
             return options;
         }
 
+        /**
+         * Get the name followed by the non-empty options, separated by single spaces.
+         */
+        public String normalized() {
+            StringBuilder result = new StringBuilder(name);
+            for (String option : options) {
+                if (option != null && !option.trim().isEmpty()) {
+                    result.append(" ").append(option.trim());
+                }
+            }
+            return result.toString();
+        }
+
         private static String name(String spec) {
             int idx = spec.indexOf(" ");
             return idx > 0 ? spec.substring(0, idx) : spec;
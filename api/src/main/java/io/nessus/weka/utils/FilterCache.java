@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.utils;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import io.nessus.common.AssertArg;
+import io.nessus.weka.utils.DatasetUtils.OperatorSpec;
+import weka.core.Instances;
+
+/**
+ * A cache of filter results with a memory budget and LRU eviction.
+ * 
+ * Entries are keyed by a content fingerprint of the input instances and the 
+ * normalized filter spec.
+ */
+public class FilterCache extends InstancesCache<FilterCache.Key> {
+
+    public static final long DEFAULT_BUDGET = 256L << 20;
+    
+    public FilterCache() {
+        this(DEFAULT_BUDGET);
+    }
+    
+    public FilterCache(long budget) {
+        super(budget);
+    }
+
+    /**
+     * Get the cached result for the given input and filter spec or compute it with the given function.
+     */
+    public Instances get(Instances input, OperatorSpec spec, Supplier<Instances> filter) {
+        AssertArg.notNull(input, "Null input");
+        AssertArg.notNull(spec, "Null spec");
+        AssertArg.notNull(filter, "Null filter");
+        
+        // Create the key before the filter consumes the options
+        Key key = new Key(InstancesUtils.fingerprint(input), input.numInstances(), spec.normalized());
+        return get(key, filter);
+    }
+    
+    /**
+     * Get the cached result for the given input and sequence of filters or compute it with the given function.
+     */
+    public Instances get(Instances input, List<OperatorSpec> specs, Supplier<Instances> filter) {
+        AssertArg.notNull(input, "Null input");
+        AssertArg.notNull(specs, "Null specs");
+        AssertArg.notNull(filter, "Null filter");
+        
+        String spec = specs.stream().map(OperatorSpec::normalized).collect(Collectors.joining(" | "));
+        Key key = new Key(InstancesUtils.fingerprint(input), input.numInstances(), spec);
+        return get(key, filter);
+    }
+    
+    static class Key {
+        
+        final long fingerprint;
+        final int numInstances;
+        final String spec;
+        
+        Key(long fingerprint, int numInstances, String spec) {
+            this.fingerprint = fingerprint;
+            this.numInstances = numInstances;
+            this.spec = spec;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fingerprint, numInstances, spec);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return fingerprint == other.fingerprint && numInstances == other.numInstances && spec.equals(other.spec);
+        }
+    }
+}
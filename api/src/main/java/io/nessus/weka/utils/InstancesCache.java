@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import io.nessus.common.AssertArg;
+import weka.core.Instances;
+
+/**
+ * A cache of instances with a memory budget and LRU eviction.
+ * 
+ * Values are computed outside the lock, so that a slow load does not block 
+ * hits for other keys. Callers always get a copy of the cached instances. 
+ * The copy shares the attribute values, which Weka copies on the first 
+ * modification of an instance.
+ */
+public class InstancesCache<K> {
+
+    private final LinkedHashMap<K, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long budget;
+    
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    
+    public InstancesCache(long budget) {
+        AssertArg.isTrue(budget > 0, "Invalid budget: " + budget);
+        this.budget = budget;
+    }
+
+    /**
+     * Get the cached instances for the given key or compute them with the given supplier.
+     */
+    public Instances get(K key, Supplier<Instances> supplier) {
+        AssertArg.notNull(key, "Null key");
+        AssertArg.notNull(supplier, "Null supplier");
+        
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hitCount++;
+                return new Instances(entry.instances);
+            }
+            missCount++;
+        }
+        
+        // Compute outside the lock 
+        Instances instances = supplier.get();
+        long entrySize = InstancesUtils.estimateSize(instances);
+        
+        synchronized (this) {
+            if (entrySize <= budget && !entries.containsKey(key)) {
+                beforePut(key);
+                entries.put(key, new Entry(instances, entrySize));
+                size += entrySize;
+                evict();
+            }
+        }
+        
+        return new Instances(instances);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+    
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+    
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+    
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        return total > 0 ? (double) hitCount / total : 0.0;
+    }
+    
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+    
+    /**
+     * Called with the lock held before a new entry is added for the given key.
+     */
+    protected void beforePut(K key) {
+    }
+    
+    /**
+     * Remove the entries with a matching key. Requires the lock to be held.
+     */
+    protected void removeIf(Predicate<K> predicate) {
+        Iterator<Map.Entry<K, Entry>> itr = entries.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<K, Entry> me = itr.next();
+            if (predicate.test(me.getKey())) {
+                size -= me.getValue().size;
+                itr.remove();
+            }
+        }
+    }
+    
+    private void evict() {
+        Iterator<Map.Entry<K, Entry>> itr = entries.entrySet().iterator();
+        while (size > budget && itr.hasNext()) {
+            Entry entry = itr.next().getValue();
+            size -= entry.size;
+            evictionCount++;
+            itr.remove();
+        }
+    }
+    
+    public synchronized String toString() {
+        return String.format("%s[entries=%d,size=%d,budget=%d,hits=%d,misses=%d,evictions=%d]", 
+                getClass().getSimpleName(), entries.size(), size, budget, hitCount, missCount, evictionCount);
+    }
+    
+    private static class Entry {
+        
+        final Instances instances;
+        final long size;
+        
+        Entry(Instances instances, long size) {
+            this.instances = instances;
+            this.size = size;
+        }
+    }
+}
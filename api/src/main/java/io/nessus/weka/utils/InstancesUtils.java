@@ -21,10 +21,18 @@ package io.nessus.weka.utils;
 
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+import io.nessus.common.AssertArg;
+import io.nessus.weka.internal.ColumnarInstance;
 import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
 
 public class InstancesUtils {
 
@@ -39,4 +47,247 @@ public class InstancesUtils {
         return atts;
     }
     
+    /**
+     * Estimate the heap size of the given instances in bytes.
+     */
+    public static long estimateSize(Instances instances) {
+        AssertArg.notNull(instances, "Null instances");
+        
+        // Object header, array header and list slot
+        long result = 0;
+        for (Instance inst : instances) {
+            
+            // Columnar values are held by the store
+            if (inst instanceof ColumnarInstance && !((ColumnarInstance) inst).isDetached()) {
+                result += 48;
+                continue;
+            }
+            
+            result += 48 + 8L * inst.numValues();
+            if (inst instanceof SparseInstance) {
+                result += 16 + 4L * inst.numValues();
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Get a 64-bit fingerprint of the header, values and weights of the given instances.
+     */
+    public static long fingerprint(Instances instances) {
+        AssertArg.notNull(instances, "Null instances");
+        
+        Instances header = new Instances(instances, 0);
+        long hash = mix(header.toString().hashCode() ^ 0x9E3779B97F4A7C15L);
+        hash = mix(hash ^ instances.classIndex());
+        
+        int numAttributes = instances.numAttributes();
+        boolean[] strings = new boolean[numAttributes];
+        for (int i = 0; i < numAttributes; i++) {
+            strings[i] = instances.attribute(i).isString();
+        }
+        
+        for (Instance inst : instances) {
+            for (int i = 0; i < numAttributes; i++) {
+                double value = inst.value(i);
+                if (strings[i] && !Utils.isMissingValue(value)) {
+                    hash = mix(hash ^ inst.stringValue(i).hashCode());
+                } else {
+                    hash = mix(hash ^ Double.doubleToLongBits(value));
+                }
+            }
+            hash = mix(hash ^ Double.doubleToLongBits(inst.weight()));
+        }
+        return hash;
+    }
+    
+    // The finalizer of SplitMix64
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+    
+    /**
+     * Get the fraction of attribute values that are zero.
+     */
+    public static double sparsity(Instances instances) {
+        AssertArg.notNull(instances, "Null instances");
+        
+        long numCells = (long) instances.numInstances() * instances.numAttributes();
+        if (numCells == 0) 
+            return 0.0;
+        
+        // Sparse instances only hold the non-zero values
+        long numNonZero = 0;
+        for (Instance inst : instances) {
+            for (int i = 0; i < inst.numValues(); i++) {
+                if (inst.valueSparse(i) != 0.0) numNonZero++;
+            }
+        }
+        return 1.0 - (double) numNonZero / numCells;
+    }
+    
+    /**
+     * True if all of the given instances are sparse.
+     */
+    public static boolean isSparse(Instances instances) {
+        AssertArg.notNull(instances, "Null instances");
+        return instances.stream().allMatch(inst -> inst instanceof SparseInstance);
+    }
+    
+    /**
+     * Convert the given instances to sparse instances.
+     * @return the given instances if they are sparse already 
+     */
+    public static Instances toSparse(Instances instances) {
+        AssertArg.notNull(instances, "Null instances");
+        
+        if (isSparse(instances)) 
+            return instances;
+        
+        Instances result = new Instances(instances, instances.numInstances());
+        for (Instance inst : instances) {
+            result.add(inst instanceof SparseInstance ? inst : new SparseInstance(inst));
+        }
+        return result;
+    }
+    
+    /**
+     * Convert the given instances to dense instances.
+     * @return the given instances if none of them is sparse 
+     */
+    public static Instances toDense(Instances instances) {
+        AssertArg.notNull(instances, "Null instances");
+        
+        if (instances.stream().noneMatch(inst -> inst instanceof SparseInstance)) 
+            return instances;
+        
+        Instances result = new Instances(instances, instances.numInstances());
+        for (Instance inst : instances) {
+            result.add(inst instanceof SparseInstance ? new DenseInstance(inst) : inst);
+        }
+        return result;
+    }
+    
+    /**
+     * Concatenate the given instances into one pre-sized result.
+     * 
+     * All parts must have the same attribute names and types. Nominal labels and 
+     * string values that differ between parts are merged and remapped.
+     */
+    public static Instances merge(List<Instances> parts) {
+        AssertArg.notNull(parts, "Null parts");
+        AssertArg.isFalse(parts.isEmpty(), "No parts");
+        
+        Instances first = parts.get(0);
+        int numAttributes = first.numAttributes();
+        
+        // Collect the merged values for nominal and string attributes
+        boolean remap = false;
+        List<Set<String>> values = new ArrayList<>();
+        for (int i = 0; i < numAttributes; i++) {
+            Attribute attr = first.attribute(i);
+            Set<String> set = new LinkedHashSet<>();
+            for (Instances part : parts) {
+                AssertArg.isEqual(numAttributes, part.numAttributes(), "Incompatible number of attributes in: " + part.relationName());
+                Attribute other = part.attribute(i);
+                AssertArg.isEqual(attr.name(), other.name(), "Incompatible attribute names in: " + part.relationName());
+                AssertArg.isEqual(attr.type(), other.type(), "Incompatible attribute types in: " + part.relationName());
+                AssertArg.isFalse(attr.isRelationValued() && !attr.equals(other), "Incompatible relational attribute in: " + part.relationName());
+                if (attr.isDate()) {
+                    AssertArg.isEqual(attr.getDateFormat(), other.getDateFormat(), "Incompatible date format in: " + part.relationName());
+                }
+                if (attr.isNominal() || attr.isString()) {
+                    for (int j = 0; j < other.numValues(); j++) {
+                        set.add(other.value(j));
+                    }
+                    remap |= attr.isString() || !attr.equals(other) && part != first;
+                }
+            }
+            values.add(set);
+        }
+        
+        int total = parts.stream().mapToInt(Instances::numInstances).sum();
+        
+        Instances header = first;
+        if (remap) {
+            ArrayList<Attribute> atts = new ArrayList<>(numAttributes);
+            for (int i = 0; i < numAttributes; i++) {
+                Attribute attr = first.attribute(i);
+                if (attr.isNominal()) {
+                    atts.add(new Attribute(attr.name(), new ArrayList<>(values.get(i))));
+                } else if (attr.isString()) {
+                    atts.add(new Attribute(attr.name(), (List<String>) null));
+                } else {
+                    atts.add((Attribute) attr.copy());
+                }
+            }
+            header = new Instances(first.relationName(), atts, 0);
+            header.setClassIndex(first.classIndex());
+        }
+        
+        Instances result = new Instances(header, total);
+        for (Instances part : parts) {
+            int[][] mappings = remap ? valueMappings(part, result) : null;
+            for (Instance inst : part) {
+                if (remap) {
+                    double[] vals = inst.toDoubleArray();
+                    for (int i = 0; i < numAttributes; i++) {
+                        if (mappings[i] != null && !inst.isMissing(i)) {
+                            vals[i] = mappings[i][(int) vals[i]];
+                        }
+                    }
+                    result.add(new DenseInstance(inst.weight(), vals));
+                } else {
+                    result.add(inst);
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Map the nominal and string value indices of the given part to the merged result.
+     * String values are added to the result once per distinct value of the part.
+     */
+    private static int[][] valueMappings(Instances part, Instances result) {
+        int[][] mappings = new int[part.numAttributes()][];
+        for (int i = 0; i < part.numAttributes(); i++) {
+            Attribute other = part.attribute(i);
+            Attribute attr = result.attribute(i);
+            if (attr.isNominal() || attr.isString()) {
+                int[] mapping = new int[other.numValues()];
+                for (int j = 0; j < mapping.length; j++) {
+                    String value = other.value(j);
+                    mapping[j] = attr.isNominal() ? attr.indexOfValue(value) : attr.addStringValue(value);
+                }
+                mappings[i] = mapping;
+            }
+        }
+        return mappings;
+    }
+    
+    /**
+     * Guess the class index if not set already
+     */
+    public static Instances assignClassIndex(Instances instances) {
+        AssertArg.notNull(instances, "Null instances");
+        
+        if (instances.classIndex() < 0) {
+            Attribute attr = instances.attribute("class");
+            if (attr != null) {
+                instances.setClass(attr);
+            } else {
+                int numatts = instances.numAttributes();
+                if (numatts > 0) {
+                    attr = instances.attribute(numatts - 1);
+                    if (attr.isNominal()) {
+                        instances.setClass(attr);
+                    }
+                }
+            }
+        }
+        return instances;
+    }
 }
@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import io.nessus.common.AssertArg;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Options that are pushed down into dataset reading.
+ * 
+ * The attributes to keep can be given by name or zero based index. Without any,
+ * all attributes are kept. The row filter is evaluated against the projected row 
+ * and only matching rows are stored.
+ */
+public class ReadOptions {
+
+    private final Set<String> attributeNames = new LinkedHashSet<>();
+    private final Set<Integer> attributeIndices = new LinkedHashSet<>();
+    private Predicate<Instance> rowFilter;
+    
+    public ReadOptions keepAttributes(String... names) {
+        AssertArg.notNull(names, "Null names");
+        attributeNames.addAll(Arrays.asList(names));
+        return this;
+    }
+    
+    public ReadOptions keepAttributes(int... indices) {
+        AssertArg.notNull(indices, "Null indices");
+        Arrays.stream(indices).forEach(attributeIndices::add);
+        return this;
+    }
+    
+    public ReadOptions filterRows(Predicate<Instance> predicate) {
+        AssertArg.notNull(predicate, "Null predicate");
+        rowFilter = rowFilter != null ? rowFilter.and(predicate) : predicate;
+        return this;
+    }
+    
+    public Predicate<Instance> getRowFilter() {
+        return rowFilter;
+    }
+
+    /**
+     * Get the sorted indices of the attributes to keep from the given structure.
+     */
+    public int[] getAttributeIndices(Instances structure) {
+        AssertArg.notNull(structure, "Null structure");
+        
+        if (attributeNames.isEmpty() && attributeIndices.isEmpty()) {
+            int[] result = new int[structure.numAttributes()];
+            Arrays.setAll(result, i -> i);
+            return result;
+        }
+        
+        Set<Integer> result = new TreeSet<>();
+        for (String name : attributeNames) {
+            Attribute attr = structure.attribute(name);
+            AssertArg.notNull(attr, "Cannot find attribute: " + name);
+            result.add(attr.index());
+        }
+        for (Integer idx : attributeIndices) {
+            AssertArg.isTrue(idx >= 0 && idx < structure.numAttributes(), "Invalid attribute index: " + idx);
+            result.add(idx);
+        }
+        return result.stream().mapToInt(Integer::intValue).toArray();
+    }
+    
+    public String toString() {
+        return "ReadOptions[attributes=" + attributeNames + attributeIndices + ",filter=" + (rowFilter != null) + "]";
+    }
+}
@@ -0,0 +1,233 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.weka.utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.nessus.common.AssertArg;
+import io.nessus.weka.UncheckedException;
+import io.nessus.weka.internal.BinaryFormat;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * Named dataset slots with a memory budget.
+ * 
+ * When the estimated size of the resident slots exceeds the budget, the least 
+ * recently used slots are written to temporary files in the binary dataset format. 
+ * A spilled slot is read again when it is removed from the store.
+ * 
+ * Slots that hold the same instances are counted once. Such instances are not 
+ * spilled, because they would still be referenced by the other slots. Spilled 
+ * files are deleted when the slot is removed, replaced or cleared, and otherwise 
+ * on exit.
+ */
+public class SlotStore {
+
+    private final LinkedHashMap<String, Instances> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Path> spilled = new HashMap<>();
+    private final Map<Instances, Reference> references = new IdentityHashMap<>();
+    private final long budget;
+    
+    private long size;
+    private long spillCount;
+    private long reloadCount;
+    
+    public SlotStore() {
+        this(DatasetUtils.getSlotBudget());
+    }
+    
+    public SlotStore(long budget) {
+        AssertArg.isTrue(budget > 0, "Invalid budget: " + budget);
+        this.budget = budget;
+    }
+
+    /**
+     * Put the given instances in the named slot, replacing any previous content.
+     */
+    public synchronized void put(String name, Instances instances) {
+        AssertArg.notNull(name, "Null name");
+        AssertArg.notNull(instances, "Null instances");
+        
+        discard(name);
+        
+        resident.put(name, instances);
+        retain(instances);
+        spill();
+    }
+    
+    /**
+     * Remove the instances from the named slot. 
+     * @return the instances or null if there is no such slot
+     */
+    public synchronized Instances remove(String name) {
+        AssertArg.notNull(name, "Null name");
+        
+        Instances instances = resident.remove(name);
+        if (instances != null) {
+            release(instances);
+            return instances;
+        }
+        
+        Path file = spilled.remove(name);
+        if (file == null) 
+            return null;
+        
+        try {
+            // Copy the values to the heap, the file is deleted below
+            Instances result = BinaryFormat.read(file, null, false);
+            reloadCount++;
+            return result;
+        } finally {
+            delete(file);
+        }
+    }
+    
+    /**
+     * True if the named slot was written to a file.
+     */
+    public synchronized boolean isSpilled(String name) {
+        return spilled.containsKey(name);
+    }
+    
+    /**
+     * True if the given instances are held by a resident slot.
+     */
+    public synchronized boolean isResident(Instances instances) {
+        return references.containsKey(instances);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+    
+    public synchronized long getResidentSize() {
+        return size;
+    }
+    
+    public synchronized int getResidentCount() {
+        return resident.size();
+    }
+    
+    public synchronized int getSpilledCount() {
+        return spilled.size();
+    }
+    
+    public synchronized long getSpillCount() {
+        return spillCount;
+    }
+    
+    public synchronized long getReloadCount() {
+        return reloadCount;
+    }
+    
+    public synchronized void clear() {
+        resident.clear();
+        references.clear();
+        size = 0;
+        spilled.values().forEach(SlotStore::delete);
+        spilled.clear();
+    }
+    
+    private void discard(String name) {
+        Instances instances = resident.remove(name);
+        if (instances != null) {
+            release(instances);
+        }
+        Path file = spilled.remove(name);
+        if (file != null) {
+            delete(file);
+        }
+    }
+    
+    private void spill() {
+        Iterator<Map.Entry<String, Instances>> itr = resident.entrySet().iterator();
+        while (size > budget && itr.hasNext()) {
+            Map.Entry<String, Instances> me = itr.next();
+            Instances instances = me.getValue();
+            
+            // The binary format does not support relational attributes
+            if (instances.checkForAttributeType(Attribute.RELATIONAL)) 
+                continue;
+            
+            // Spilling does not free instances that are held by another slot 
+            if (references.get(instances).count > 1)
+                continue;
+            
+            try {
+                Path file = Files.createTempFile("nessus-slot-", BinaryFormat.EXTENSION);
+                file.toFile().deleteOnExit();
+                BinaryFormat.write(instances, file);
+                spilled.put(me.getKey(), file);
+            } catch (IOException ex) {
+                throw UncheckedException.create(ex);
+            }
+            
+            itr.remove();
+            release(instances);
+            spillCount++;
+        }
+    }
+    
+    private void retain(Instances instances) {
+        Reference ref = references.computeIfAbsent(instances, k -> new Reference(InstancesUtils.estimateSize(k)));
+        if (ref.count++ == 0) {
+            size += ref.size;
+        }
+    }
+    
+    private void release(Instances instances) {
+        Reference ref = references.get(instances);
+        if (--ref.count == 0) {
+            references.remove(instances);
+            size -= ref.size;
+        }
+    }
+    
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            throw UncheckedException.create(ex);
+        }
+    }
+    
+    public synchronized String toString() {
+        return String.format("SlotStore[resident=%d,spilled=%d,size=%d,budget=%d,spills=%d,reloads=%d]", 
+                resident.size(), spilled.size(), size, budget, spillCount, reloadCount);
+    }
+    
+    private static class Reference {
+        
+        final long size;
+        int count;
+        
+        Reference(long size) {
+            this.size = size;
+        }
+    }
+}
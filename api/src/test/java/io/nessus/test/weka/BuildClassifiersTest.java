@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.test.weka;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.nessus.weka.Dataset;
+import io.nessus.weka.testing.AbstractWekaTest;
+import io.nessus.weka.utils.DatasetUtils;
+import weka.classifiers.Classifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+public class BuildClassifiersTest extends AbstractWekaTest {
+    
+    @Test
+    public void buildConcurrently() throws Exception {
+        
+        Dataset dataset = Dataset.create("src/test/resources/data/iris.arff");
+        Instances instances = dataset.getInstances();
+        
+        String[] specs = { "J48", "OneR", "NaiveBayes", "Logistic" };
+        Map<String, Classifier> classifiers = dataset.buildClassifiers(specs);
+        
+        Assert.assertEquals(4, classifiers.size());
+        Assert.assertEquals(new ArrayList<>(classifiers.keySet()).toString(), "[J48, OneR, NaiveBayes, Logistic]");
+        
+        for (String spec : specs) {
+            Classifier expected = DatasetUtils.buildClassifier(instances, spec);
+            Classifier actual = classifiers.get(spec);
+            for (int i = 0; i < instances.numInstances(); i += 7) {
+                double[] dist = expected.distributionForInstance(instances.instance(i));
+                Assert.assertArrayEquals(spec, dist, actual.distributionForInstance(instances.instance(i)), 1e-12);
+            }
+        }
+        
+        // The shared instances are not modified
+        Assert.assertEquals(150, dataset.getInstances().numInstances());
+    }
+    
+    @Test
+    public void buildWithStrings() throws Exception {
+        
+        ArrayList<Attribute> atts = new ArrayList<>();
+        atts.add(new Attribute("text", (List<String>) null));
+        atts.add(new Attribute("class", Arrays.asList("pos", "neg")));
+        Instances instances = new Instances("reviews", atts, 0);
+        instances.setClassIndex(1);
+        
+        String[] texts = { "good great", "bad poor", "great fine", "poor awful" };
+        for (int i = 0; i < 20; i++) {
+            double text = instances.attribute(0).addStringValue(texts[i % texts.length]);
+            instances.add(new DenseInstance(1.0, new double[] { text, i % 2 }));
+        }
+        
+        // The string filters of both classifiers use the same header
+        String filter = "meta.FilteredClassifier -F weka.filters.unsupervised.attribute.StringToWordVector -W ";
+        String[] specs = { filter + "weka.classifiers.trees.J48", filter + "weka.classifiers.bayes.NaiveBayes" };
+        Map<String, Classifier> classifiers = DatasetUtils.buildClassifiers(instances, specs);
+        
+        for (String spec : specs) {
+            Classifier classifier = classifiers.get(spec);
+            Assert.assertEquals(0.0, classifier.classifyInstance(instances.instance(0)), 0.0);
+            Assert.assertEquals(1.0, classifier.classifyInstance(instances.instance(1)), 0.0);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.test.weka;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.nessus.weka.ClassifierSearch;
+import io.nessus.weka.ClassifierSearch.Candidate;
+import io.nessus.weka.ClassifierSearch.Result;
+import io.nessus.weka.Dataset;
+import io.nessus.weka.testing.AbstractWekaTest;
+import weka.classifiers.functions.SMO;
+import weka.classifiers.functions.supportVector.PolyKernel;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+public class ClassifierSearchTest extends AbstractWekaTest {
+    
+    @Test
+    public void gridSearch() throws Exception {
+        
+        Dataset dataset = Dataset.create("src/test/resources/data/iris.arff");
+        
+        ClassifierSearch search = ClassifierSearch.create("J48")
+                .option("-C", "0.1", "0.25", "0.5")
+                .option("-M", "2", "10")
+                .parallelism(2);
+        
+        Assert.assertEquals(6, search.candidates().size());
+        Assert.assertEquals("J48 -C 0.1 -M 2", search.candidates().get(0));
+        
+        Result result = search.run(dataset);
+        logInfo("{}", result);
+        
+        List<Candidate> ranking = result.getRanking();
+        Assert.assertEquals(6, ranking.size());
+        Assert.assertNotNull(result.getClassifier());
+        
+        Candidate best = result.getBest();
+        Assert.assertFalse(best.isCancelled());
+        for (Candidate candidate : ranking) {
+            Assert.assertTrue(candidate.isCancelled() || best.getErrorRate() <= candidate.getErrorRate());
+        }
+        
+        // The same folds as a plain cross-validation with the same seed
+        double expected = Dataset.create("src/test/resources/data/iris.arff")
+                .buildClassifier(best.getSpec())
+                .crossValidateModel(10, 1)
+                .getEvaluation().pctCorrect();
+        Assert.assertEquals(expected, best.getEvaluation().pctCorrect(), 0.0);
+    }
+    
+    @Test
+    public void randomSearch() throws Exception {
+        
+        ClassifierSearch search = ClassifierSearch.create("J48")
+                .range("-C", 0.05, 0.5)
+                .range("-M", 1, 10)
+                .random(4);
+        
+        Assert.assertEquals(4, search.candidates().size());
+        
+        Dataset dataset = Dataset.create("src/test/resources/data/iris.arff").buildClassifier(search);
+        Assert.assertNotNull(dataset.getClassifier());
+    }
+    
+    @Test
+    public void quotedOptions() throws Exception {
+        
+        String kernelSpec = "weka.classifiers.functions.supportVector.PolyKernel -E 2.0";
+        ClassifierSearch search = ClassifierSearch.create("SMO")
+                .option("-K", kernelSpec, "weka.classifiers.functions.supportVector.PolyKernel -E 1.0");
+        
+        String spec = search.candidates().get(0);
+        Assert.assertEquals("SMO -K \"" + kernelSpec + "\"", spec);
+        
+        Result result = search.run(Dataset.create("src/test/resources/data/iris.arff"));
+        Assert.assertEquals(2, result.getRanking().size());
+        
+        SMO classifier = (SMO) result.getClassifier();
+        Assert.assertTrue(classifier.getKernel() instanceof PolyKernel);
+    }
+    
+    @Test
+    public void stringAttributes() throws Exception {
+        
+        ArrayList<Attribute> atts = new ArrayList<>();
+        atts.add(new Attribute("text", (List<String>) null));
+        atts.add(new Attribute("class", Arrays.asList("pos", "neg")));
+        Instances data = new Instances("reviews", atts, 0);
+        data.setClassIndex(1);
+        
+        String[] pos = { "good great fine", "great nice", "fine good", "nice good" };
+        String[] neg = { "bad poor awful", "poor bad", "awful poor", "bad nice" };
+        for (int i = 0; i < 40; i++) {
+            boolean isPos = i % 2 == 0;
+            String text = isPos ? pos[i / 2 % pos.length] : neg[i / 2 % neg.length];
+            data.add(new DenseInstance(1.0, new double[] { data.attribute(0).addStringValue(text), isPos ? 0 : 1 }));
+        }
+        
+        // The string filter runs in every candidate on the shared folds
+        ClassifierSearch search = ClassifierSearch.create("meta.FilteredClassifier")
+                .option("-F", "weka.filters.unsupervised.attribute.StringToWordVector")
+                .option("-W", "weka.classifiers.trees.J48", "weka.classifiers.bayes.NaiveBayes")
+                .folds(4);
+        
+        Result expected = search.parallelism(1).run(new Instances(data));
+        Result actual = search.parallelism(4).run(new Instances(data));
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(expected.getRanking().get(i).getSpec(), actual.getRanking().get(i).getSpec());
+            Assert.assertEquals(expected.getRanking().get(i).getErrorRate(), actual.getRanking().get(i).getErrorRate(), 0.0);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.test.weka;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.nessus.weka.Dataset;
+import io.nessus.weka.internal.CrossValidationFolds;
+import io.nessus.weka.testing.AbstractWekaTest;
+import weka.classifiers.Evaluation;
+import weka.core.Instances;
+
+public class CrossValidationTest extends AbstractWekaTest {
+    
+    @Test
+    public void parallelFolds() throws Exception {
+        
+        Evaluation expected = Dataset.create("src/test/resources/data/iris.arff")
+                .buildClassifier("J48")
+                .crossValidateModel(10, 1)
+                .getEvaluation();
+        
+        Evaluation actual = Dataset.create("src/test/resources/data/iris.arff")
+                .buildClassifier("J48")
+                .crossValidateModel(10, 1, true)
+                .getEvaluation();
+        
+        Assert.assertEquals(expected.pctCorrect(), actual.pctCorrect(), 0.0);
+        Assert.assertEquals(expected.toSummaryString(), actual.toSummaryString());
+        Assert.assertEquals(expected.toMatrixString(), actual.toMatrixString());
+    }
+    
+    @Test
+    public void lazyFolds() throws Exception {
+        
+        Instances data = Dataset.create("src/test/resources/data/iris.arff").getInstances();
+        
+        Random random = new Random(1);
+        Instances expected = new Instances(data);
+        expected.randomize(random);
+        expected.stratify(7);
+        
+        String[] trainSets = new String[7];
+        for (int i = 0; i < 7; i++) {
+            trainSets[i] = expected.trainCV(7, i, random).toString();
+        }
+        
+        // The lazy folds can be drawn in any order
+        Random other = new Random(1);
+        CrossValidationFolds folds = new CrossValidationFolds(data, 7, other);
+        for (int i = 6; i >= 0; i--) {
+            Assert.assertEquals(trainSets[i], folds.trainSet(i).toString());
+            Assert.assertEquals(expected.testCV(7, i).toString(), folds.testSet(i).toString());
+        }
+        Assert.assertEquals(random.nextLong(), other.nextLong());
+    }
+}
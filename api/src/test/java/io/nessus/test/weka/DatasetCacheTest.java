@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.test.weka;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.nessus.weka.Dataset;
+import io.nessus.weka.testing.AbstractWekaTest;
+import io.nessus.weka.utils.DatasetCache;
+import io.nessus.weka.utils.DatasetUtils;
+import io.nessus.weka.utils.FilterCache;
+import weka.core.Instances;
+
+public class DatasetCacheTest extends AbstractWekaTest {
+    
+    @After
+    public void after() {
+        DatasetUtils.setDatasetCache(null);
+        DatasetUtils.setFilterCache(null);
+    }
+    
+    @Test
+    public void readCached() throws Exception {
+        
+        DatasetCache cache = new DatasetCache();
+        DatasetUtils.setDatasetCache(cache);
+        
+        Path inpath = Paths.get("src/test/resources/data/iris.arff");
+        Instances first = Dataset.create(inpath).getInstances();
+        first.instance(0).setValue(0, 99.0);
+        first.delete(1);
+        
+        Instances second = Dataset.create(inpath).getInstances();
+        
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getEntryCount());
+        
+        Assert.assertEquals(150, second.numInstances());
+        Assert.assertEquals(5.1, second.instance(0).value(0), 0.0);
+    }
+    
+    @Test
+    public void filterCached() throws Exception {
+        
+        FilterCache cache = new FilterCache();
+        DatasetUtils.setFilterCache(cache);
+        
+        Instances iris = Dataset.create("src/test/resources/data/iris.arff").getInstances();
+        
+        Instances first = DatasetUtils.applyFilter(iris, "Remove -R 1");
+        Instances second = DatasetUtils.applyFilter(new Instances(iris), "Remove  -R 1");
+        
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(0.5, cache.getHitRate(), 0.0);
+        Assert.assertEquals(first.toString(), second.toString());
+        
+        // Changed content is a different key
+        iris.instance(0).setValue(0, 99.0);
+        DatasetUtils.applyFilter(iris, "Remove -R 1");
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(2, cache.getEntryCount());
+    }
+    
+    @Test
+    public void lazyFiltersCached() throws Exception {
+        
+        FilterCache cache = new FilterCache();
+        DatasetUtils.setFilterCache(cache);
+        
+        for (int i = 0; i < 2; i++) {
+            Instances result = Dataset.create("src/test/resources/data/iris.arff")
+                    .lazy(true)
+                    .apply("Remove -R 1")
+                    .apply("Remove -R 1")
+                    .getInstances();
+            Assert.assertEquals(3, result.numAttributes());
+        }
+        
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.test.weka;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.nessus.weka.Dataset;
+import io.nessus.weka.FittedFilter;
+import io.nessus.weka.testing.AbstractWekaTest;
+import weka.core.Instance;
+import weka.core.Instances;
+
+public class DatasetFilterTest extends AbstractWekaTest {
+    
+    @Test
+    public void lazyFilters() throws Exception {
+        
+        Instances expected = Dataset.create("src/test/resources/data/iris.arff")
+                .apply("Remove -R 1")
+                .apply("Add -N predicted -T NOM -L 0,1")
+                .apply("NumericToNominal -R 1")
+                .apply("RenameRelation -modify iris-filtered")
+                .getInstances();
+        
+        Instances actual = Dataset.create("src/test/resources/data/iris.arff")
+                .lazy(true)
+                .apply("Remove -R 1")
+                .apply("Add -N predicted -T NOM -L 0,1")
+                .apply("NumericToNominal -R 1")
+                .apply("RenameRelation -modify iris-filtered")
+                .getInstances();
+        
+        Assert.assertEquals("iris-filtered", actual.relationName());
+        Assert.assertEquals(expected.toString(), actual.toString());
+    }
+    
+    @Test
+    public void parallelFilters() throws Exception {
+        
+        Instances data = largeDataset();
+        
+        Instances expected = Dataset.create(new Instances(data))
+                .apply("Remove -R 1")
+                .apply("Add -N predicted -T NOM -L 0,1")
+                .getInstances();
+        
+        Instances actual = Dataset.create(new Instances(data))
+                .parallel(true)
+                .apply("Remove -R 1")
+                .apply("Add -N predicted -T NOM -L 0,1")
+                .getInstances();
+        
+        Assert.assertEquals(expected.numInstances(), actual.numInstances());
+        Assert.assertTrue(expected.equalHeaders(actual));
+        for (int i = 0; i < expected.numInstances(); i += 997) {
+            Assert.assertEquals(expected.instance(i).toString(), actual.instance(i).toString());
+        }
+    }
+    
+    @Test
+    public void fittedFilter() throws Exception {
+        
+        Instances iris = Dataset.create("src/test/resources/data/iris.arff").getInstances();
+        iris.randomize(new Random(1));
+        
+        Instances training = new Instances(iris, 0, 100);
+        Instances testing = new Instances(iris, 100, 50);
+        
+        FittedFilter filter = FittedFilter.fit(training, "Standardize");
+        Instances expected = filter.apply(testing);
+        
+        Assert.assertEquals(50, expected.numInstances());
+        Assert.assertTrue(filter.getOutputFormat().equalHeaders(expected));
+        
+        // Single instances use the same training statistics
+        Instance inst = filter.apply(testing.instance(7));
+        Assert.assertArrayEquals(expected.instance(7).toDoubleArray(), inst.toDoubleArray(), 1e-12);
+        
+        Instances actual = Dataset.create(testing).apply(filter).getInstances();
+        Assert.assertEquals(expected.toString(), actual.toString());
+        
+        // Instances with another header are rejected
+        Instance other = Dataset.create(new Instances(testing)).apply("Remove -R 1").getInstances().instance(0);
+        try {
+            filter.apply(other);
+            Assert.fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        
+        // Fitting on the test data gives different values
+        Instances refitted = FittedFilter.fit(testing, "Standardize").apply(testing);
+        Assert.assertNotEquals(expected.instance(7).value(0), refitted.instance(7).value(0), 1e-12);
+    }
+    
+    @Test
+    public void parallelStatefulFilters() throws Exception {
+        
+        Instances data = largeDataset();
+        
+        for (String filterSpec : new String[] { "ReservoirSample -S 1 -Z 100", "TimeSeriesDelta -R 1" }) {
+            
+            Instances expected = Dataset.create(new Instances(data))
+                    .apply(filterSpec)
+                    .getInstances();
+            
+            Instances actual = Dataset.create(new Instances(data))
+                    .parallel(true)
+                    .apply(filterSpec)
+                    .getInstances();
+            
+            Assert.assertEquals(filterSpec, expected.numInstances(), actual.numInstances());
+            Assert.assertEquals(filterSpec, expected.toString(), actual.toString());
+        }
+    }
+    
+    // Enough instances to be split into chunks
+    private Instances largeDataset() throws Exception {
+        Instances iris = Dataset.create("src/test/resources/data/iris.arff").getInstances();
+        Instances data = new Instances(iris, 200 * iris.numInstances());
+        for (int i = 0; i < 200; i++) {
+            iris.forEach(inst -> data.add(inst));
+        }
+        return data;
+    }
+}
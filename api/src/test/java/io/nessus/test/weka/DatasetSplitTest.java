@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.test.weka;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.nessus.weka.Dataset;
+import io.nessus.weka.testing.AbstractWekaTest;
+import weka.core.Instances;
+
+public class DatasetSplitTest extends AbstractWekaTest {
+    
+    @Test
+    public void randomSplit() throws Exception {
+        
+        Dataset dataset = Dataset.create("src/test/resources/data/iris.arff");
+        
+        List<Dataset> split = dataset.split(0.8, 1);
+        Instances training = split.get(0).getInstances();
+        Instances testing = split.get(1).getInstances();
+        
+        Assert.assertEquals(120, training.numInstances());
+        Assert.assertEquals(30, testing.numInstances());
+        Assert.assertEquals(4, training.classIndex());
+        
+        // Modifying a view does not affect the parent
+        training.instance(0).setValue(0, 99.0);
+        Assert.assertFalse(dataset.getInstances().stream().anyMatch(inst -> inst.value(0) == 99.0));
+    }
+    
+    @Test
+    public void stratifiedSplit() throws Exception {
+        
+        Dataset dataset = Dataset.create("src/test/resources/data/iris.arff");
+        
+        List<Dataset> split = dataset.stratifiedSplit(5, 1);
+        Instances training = split.get(0).getInstances();
+        Instances testing = split.get(1).getInstances();
+        
+        Assert.assertEquals(120, training.numInstances());
+        Assert.assertEquals(30, testing.numInstances());
+        
+        int[] counts = testing.attributeStats(testing.classIndex()).nominalCounts;
+        Assert.assertArrayEquals(new int[] { 10, 10, 10 }, counts);
+    }
+}
@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * Nessus :: Weka :: API
+ * %%
+ * Copyright (C) 2020 Nessus
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.nessus.test.weka;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.nessus.weka.Dataset;
+import io.nessus.weka.StorageMode;
+import io.nessus.weka.internal.ColumnStore;
+import io.nessus.weka.testing.AbstractWekaTest;
+import io.nessus.weka.utils.InstancesUtils;
+import io.nessus.weka.utils.SlotStore;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+public class DatasetStorageTest extends AbstractWekaTest {
+    
+    @Test
+    public void pushModifyPop() throws Exception {
+        
+        Dataset dataset = Dataset.create("src/test/resources/data/iris.arff")
+                
+                .push()
+                
+                .consumeInstances(ins -> ins.instance(0).setValue(0, 99.0))
+                
+                .consumeInstances(ins -> ins.delete(1));
+        
+        Assert.assertEquals(149, dataset.getInstances().numInstances());
+        Assert.assertEquals(99.0, dataset.getInstances().instance(0).value(0), 0.0);
+        
+        // Reading does not copy the instances
+        Assert.assertSame(dataset.push("other").getInstances(), dataset.getInstances());
+        
+        Instances instances = dataset.pop().getInstances();
+        
+        Assert.assertEquals(150, instances.numInstances());
+        Assert.assertEquals(5.1, instances.instance(0).value(0), 0.0);
+    }
+    
+    @Test
+    public void popSharedWithView() throws Exception {
+        
+        Dataset dataset = Dataset.create("src/test/resources/data/iris.arff").push();
+        Dataset view = dataset.rows(new int[] { 0, 1 });
+        
+        // The popped instances are still referenced by the view
+        dataset.pop().consumeInstances(ins -> ins.instance(0).setValue(0, 99.0));
+        
+        Assert.assertEquals(99.0, dataset.getInstances().instance(0).value(0), 0.0);
+        Assert.assertEquals(5.1, view.getInstances().instance(0).value(0), 0.0);
+    }
+    
+    @Test
+    public void offHeapStorage() throws Exception {
+        
+        Instances heap = Dataset.create("src/test/resources/data/iris.arff").getInstances();
+        
+        Dataset dataset = Dataset.create("src/test/resources/data/iris.arff", StorageMode.OFF_HEAP);
+        Instances offheap = dataset.getInstances();
+        
+        Assert.assertTrue(ColumnStore.isColumnar(offheap));
+        Assert.assertEquals(heap.numInstances(), offheap.numInstances());
+        for (int i = 0; i < heap.numInstances(); i++) {
+            Assert.assertArrayEquals(heap.instance(i).toDoubleArray(), offheap.instance(i).toDoubleArray(), 0.0);
+        }
+        
+        // Filter results are moved to off-heap storage again
+        offheap = dataset.apply("Remove -R 1").getInstances();
+        Assert.assertTrue(ColumnStore.isColumnar(offheap));
+        Assert.assertEquals(4, offheap.numAttributes());
+        Assert.assertEquals(3.5, offheap.instance(0).value(0), 0.0);
+        
+        double expected = Dataset.create(heap).buildClassifier("J48").crossValidateModel(10, 1).getEvaluation().pctCorrect();
+        double actual = Dataset.create(heap, StorageMode.OFF_HEAP).buildClassifier("J48").crossValidateModel(10, 1).getEvaluation().pctCorrect();
+        Assert.assertEquals(expected, actual, 0.0);
+    }
+    
+    @Test
+    public void compactStorage() throws Exception {
+        
+        Instances heap = Dataset.create("src/test/resources/data/iris.arff").getInstances();
+        heap.instance(0).setMissing(4);
+        
+        ColumnStore store = ColumnStore.create(heap, true);
+        Assert.assertTrue(store.getSize() < ColumnStore.create(heap, false).getSize());
+        
+        Instances compact = Dataset.create(heap, StorageMode.COMPACT).getInstances();
+        Assert.assertTrue(ColumnStore.isColumnar(compact));
+        Assert.assertTrue(compact.instance(0).classIsMissing());
+        
+        for (int i = 0; i < heap.numInstances(); i++) {
+            Instance inst = compact.instance(i);
+            for (int j = 0; j < heap.numAttributes() - 1; j++) {
+                Assert.assertEquals((float) heap.instance(i).value(j), inst.value(j), 0.0);
+            }
+            Assert.assertEquals(heap.instance(i).classValue(), inst.classValue(), 0.0);
+        }
+        
+        // Mapped binary data is encoded again
+        Path outpath = getOutPath().resolve("data/iris-compact.nwd");
+        Dataset.create(heap).write(outpath);
+        Assert.assertFalse(ColumnStore.isColumnar(Dataset.create(outpath).getInstances(), true));
+        Assert.assertTrue(ColumnStore.isColumnar(Dataset.create(outpath, StorageMode.COMPACT).getInstances(), true));
+    }
+    
+    @Test
+    public void sparseConversion() throws Exception {
+        
+        ArrayList<Attribute> atts = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            atts.add(new Attribute("att" + i));
+        }
+        Instances data = new Instances("sparse", atts, 50);
+        for (int i = 0; i < 50; i++) {
+            double[] values = new double[100];
+            values[i] = 1.0;
+            data.add(new DenseInstance(1.0, values));
+        }
+        
+        Assert.assertEquals(0.99, InstancesUtils.sparsity(data), 1e-9);
+        
+        Dataset dataset = Dataset.create(data).autoSparse(0.95);
+        Instances sparse = dataset.getInstances();
+        Assert.assertTrue(InstancesUtils.isSparse(sparse));
+        Assert.assertTrue(InstancesUtils.estimateSize(sparse) < InstancesUtils.estimateSize(data));
+        Assert.assertEquals(1.0, sparse.instance(7).value(7), 0.0);
+        
+        Instances dense = dataset.autoSparse(2.0).toDense().getInstances();
+        Assert.assertFalse(dense.stream().anyMatch(inst -> inst instanceof SparseInstance));
+        Assert.assertArrayEquals(data.instance(7).toDoubleArray(), dense.instance(7).toDoubleArray(), 0.0);
+        
+        Assert.assertTrue(InstancesUtils.isSparse(dataset.toSparse().getInstances()));
+    }
+    
+    @Test
+    public void spillSlots() throws Exception {
+        
+        Instances iris = Dataset.create("src/test/resources/data/iris.arff").getInstances();
+        long size = InstancesUtils.estimateSize(iris);
+        
+        // Only the smallest slot fits in the budget
+        SlotStore slots = new SlotStore(size / 2);
+        slots.put("first", iris);
+        slots.put("second", new Instances(iris, 0, 100));
+        slots.put("third", new Instances(iris, 0, 50));
+        
+        Assert.assertEquals(2, slots.getSpilledCount());
+        Assert.assertEquals(1, slots.getResidentCount());
+        
+        Instances first = slots.remove("first");
+        Assert.assertEquals(1, slots.getReloadCount());
+        Assert.assertEquals(150, first.numInstances());
+        Assert.assertEquals(4, first.classIndex());
+        Assert.assertEquals(iris.instance(120).toString(), first.instance(120).toString());
+        
+        // Columnar values are not charged to the heap
+        Instances columnar = ColumnStore.create(iris, false).instances();
+        Assert.assertEquals(48L * 150, InstancesUtils.estimateSize(columnar));
+        
+        slots.clear();
+        Assert.assertEquals(0, slots.getSpilledCount());
+        Assert.assertNull(slots.remove("second"));
+    }
+    
+    @Test
+    public void sharedSlots() throws Exception {
+        
+        Instances iris = Dataset.create("src/test/resources/data/iris.arff").getInstances();
+        long size = InstancesUtils.estimateSize(iris);
+        
+        // Slots that hold the same instances are counted once
+        SlotStore slots = new SlotStore(size + size / 2);
+        slots.put("first", iris);
+        slots.put("second", iris);
+        Assert.assertEquals(size, slots.getResidentSize());
+        Assert.assertEquals(0, slots.getSpilledCount());
+        
+        // Shared instances are not spilled, only the unshared ones
+        slots.put("third", new Instances(iris));
+        Assert.assertEquals(1, slots.getSpilledCount());
+        Assert.assertEquals(2, slots.getResidentCount());
+        Assert.assertEquals(size, slots.getResidentSize());
+        
+        Assert.assertSame(iris, slots.remove("first"));
+        Assert.assertEquals(size, slots.getResidentSize());
+        Assert.assertSame(iris, slots.remove("second"));
+        Assert.assertEquals(0, slots.getResidentSize());
+        
+        slots.clear();
+    }
+}
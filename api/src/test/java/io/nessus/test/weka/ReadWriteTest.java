@@ -19,16 +19,39 @@
  */
 package io.nessus.test.weka;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import io.nessus.weka.Dataset;
+import io.nessus.weka.DatasetWriter;
+import io.nessus.weka.internal.BinaryFormat;
+import io.nessus.weka.internal.ColumnStore;
+import io.nessus.weka.internal.ParallelArffParser;
 import io.nessus.weka.testing.AbstractWekaTest;
+import io.nessus.weka.utils.DatasetUtils;
+import io.nessus.weka.utils.InstancesUtils;
+import io.nessus.weka.utils.ReadOptions;
 import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
 
 public class ReadWriteTest extends AbstractWekaTest {
     
@@ -43,6 +66,75 @@ public class ReadWriteTest extends AbstractWekaTest {
         Assert.assertEquals(150, instances.numInstances());
     }
     
+    @Test
+    public void readArffParallel() throws Exception {
+        
+        Path inpath = Paths.get("src/test/resources/data/iris.arff");
+        Instances expected = DatasetUtils.read(inpath);
+        Instances actual = ParallelArffParser.parse(inpath);
+        
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.toString(), actual.toString());
+    }
+    
+    @Test
+    public void readArffParallelStrings() throws Exception {
+        
+        List<String> lines = new ArrayList<>();
+        lines.add("@relation logs");
+        lines.add("@attribute host string");
+        lines.add("@attribute bytes numeric");
+        lines.add("@attribute message string");
+        lines.add("@data");
+        for (int i = 0; i < 5000; i++) {
+            lines.add(String.format("host-%d,%d,'request %s'", i % 7, i, i % 3 == 0 ? "failed" : "ok"));
+        }
+        lines.add("?,1,\"quoted value\"");
+        
+        Path inpath = Files.createTempFile("strings-", ".arff");
+        try {
+            Files.write(inpath, lines);
+            
+            Instances expected = DatasetUtils.read(inpath);
+            Instances actual = ParallelArffParser.parse(inpath);
+            
+            Assert.assertNotNull(actual);
+            Assert.assertEquals(expected.toString(), actual.toString());
+            
+            // Every distinct value is stored once in the shared attribute
+            Assert.assertEquals(7, actual.attribute("host").numValues());
+            Assert.assertEquals(3, actual.attribute("message").numValues());
+            Assert.assertTrue(actual.lastInstance().isMissing(0));
+            
+            ReadOptions options = new ReadOptions()
+                    .keepAttributes("host", "message")
+                    .filterRows(inst -> !inst.isMissing(0) && inst.stringValue(0).equals("host-3"));
+            
+            Instances filtered = ParallelArffParser.parse(inpath, options);
+            Assert.assertEquals(2, filtered.numAttributes());
+            Assert.assertEquals(714, filtered.numInstances());
+            filtered.forEach(inst -> Assert.assertEquals("host-3", inst.stringValue(0)));
+        } finally {
+            Files.delete(inpath);
+        }
+    }
+    
+    @Test
+    public void readArffProjected() throws Exception {
+        
+        ReadOptions options = new ReadOptions()
+                .keepAttributes("petallength", "class")
+                .filterRows(inst -> inst.stringValue(1).equals("Iris-setosa"));
+        
+        Path inpath = Paths.get("src/test/resources/data/iris.arff");
+        Dataset dataset = Dataset.create(inpath, options);
+        Instances instances = dataset.getInstances();
+        
+        Assert.assertEquals(2, instances.numAttributes());
+        Assert.assertEquals(50, instances.numInstances());
+        Assert.assertEquals("class", instances.classAttribute().name());
+    }
+    
     @Test
     public void readArffURL() throws Exception {
         
@@ -98,6 +190,200 @@ public class ReadWriteTest extends AbstractWekaTest {
         Assert.assertEquals(492, instances.numInstances());
     }
     
+    @Test
+    public void readDirectoryGlob() throws Exception {
+        
+        Instances iris = Dataset.create("src/test/resources/data/iris.arff").getInstances();
+        
+        Path outdir = getOutPath().resolve("data/parts");
+        Files.createDirectories(outdir);
+        DatasetUtils.write(new Instances(iris, 0, 100), outdir.resolve("iris-1.arff"));
+        DatasetUtils.write(new Instances(iris, 100, 50), outdir.resolve("iris-2.arff"));
+        
+        Instances instances = Dataset.create(outdir, "iris-*.arff").getInstances();
+        
+        Assert.assertEquals(5, instances.numAttributes());
+        Assert.assertEquals(150, instances.numInstances());
+        Assert.assertEquals(iris.instance(120).toString(), instances.instance(120).toString());
+    }
+    
+    @Test
+    public void mergeStringValues() throws Exception {
+        
+        List<Instances> parts = new ArrayList<>();
+        for (String[] values : new String[][] { { "a", "b", "a" }, { "b", "c" } }) {
+            ArrayList<Attribute> atts = new ArrayList<>();
+            atts.add(new Attribute("text", (List<String>) null));
+            Instances part = new Instances("part", atts, values.length);
+            for (String val : values) {
+                Instance inst = new DenseInstance(1);
+                inst.setDataset(part);
+                inst.setValue(0, val);
+                part.add(inst);
+            }
+            parts.add(part);
+        }
+        
+        Instances instances = InstancesUtils.merge(parts);
+        
+        Assert.assertEquals(5, instances.numInstances());
+        Assert.assertEquals(3, instances.attribute(0).numValues());
+        String merged = instances.stream().map(inst -> inst.stringValue(0)).collect(Collectors.joining());
+        Assert.assertEquals("ababc", merged);
+    }
+    
+    @Test
+    public void readGzipInputStream() throws Exception {
+        
+        Path inpath = Paths.get("src/test/resources/data/sfny.csv");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream output = new GZIPOutputStream(baos)) {
+            Files.copy(inpath, output);
+        }
+        
+        Dataset dataset = Dataset.create(new ByteArrayInputStream(baos.toByteArray()));
+        Instances instances = dataset.getInstances();
+        
+        Assert.assertEquals(8, instances.numAttributes());
+        Assert.assertEquals(492, instances.numInstances());
+    }
+    
+    @Test
+    public void writeReadBinary() throws Exception {
+        
+        Path outpath = getOutPath().resolve("data/iris.nwd");
+        Instances expected = Dataset.create("src/test/resources/data/iris.arff")
+                .write(outpath)
+                .getInstances();
+        
+        // The values are read from the mapped file without copying them
+        Instances actual = BinaryFormat.read(outpath);
+        Assert.assertTrue(ColumnStore.isColumnar(actual));
+        
+        Assert.assertEquals(expected.classIndex(), actual.classIndex());
+        Assert.assertEquals(expected.toString(), actual.toString());
+        Assert.assertEquals(expected.toString(), Dataset.create(outpath).getInstances().toString());
+        
+        ReadOptions options = new ReadOptions()
+                .keepAttributes("petallength", "class")
+                .filterRows(inst -> inst.stringValue(1).equals("Iris-virginica"));
+        
+        Instances projected = DatasetUtils.read(outpath, options);
+        Assert.assertEquals(2, projected.numAttributes());
+        Assert.assertEquals(50, projected.numInstances());
+        Assert.assertEquals(expected.instance(149).value(2), projected.lastInstance().value(0), 0.0);
+    }
+    
+    @Test
+    public void rewriteBinary() throws Exception {
+        
+        Path outpath = getOutPath().resolve("data/iris-rewrite.nwd");
+        Instances expected = Dataset.create("src/test/resources/data/iris.arff")
+                .write(outpath)
+                .getInstances();
+        
+        // Rewrite the file while its values are still mapped
+        Instances mapped = BinaryFormat.read(outpath);
+        Dataset.create(outpath).write(outpath);
+        
+        Assert.assertEquals(expected.toString(), mapped.toString());
+        Assert.assertEquals(expected.toString(), BinaryFormat.read(outpath).toString());
+        Assert.assertEquals(expected.toString(), BinaryFormat.read(outpath, null, false).toString());
+    }
+    
+    @Test
+    public void readWriteAsync() throws Exception {
+        
+        Path outpath = getOutPath().resolve("data/iris-async.arff");
+        
+        CompletableFuture<Dataset> future = Dataset.createAsync(Paths.get("src/test/resources/data/iris.arff"))
+                .thenCompose(ds -> ds.writeAsync(outpath));
+        
+        Assert.assertEquals(150, future.get().getInstances().numInstances());
+        Assert.assertEquals(150, Dataset.create(outpath).getInstances().numInstances());
+    }
+    
+    @Test
+    public void writeIncremental() throws Exception {
+        
+        Path outpath = getOutPath().resolve("data/iris-incremental.arff");
+        Path inpath = Paths.get("src/test/resources/data/iris.arff");
+        
+        try (Stream<Instance> stream = Dataset.stream(inpath)) {
+            Iterator<Instance> itr = stream.iterator();
+            Instance first = itr.next();
+            try (DatasetWriter writer = DatasetWriter.create(outpath, first.dataset())) {
+                writer.write(first);
+                itr.forEachRemaining(writer::write);
+            }
+        }
+        
+        Instances instances = Dataset.create(outpath).getInstances();
+        try (DatasetWriter writer = DatasetWriter.append(outpath, instances)) {
+            writer.write(instances);
+        }
+        
+        Assert.assertEquals(300, Dataset.create(outpath).getInstances().numInstances());
+    }
+    
+    @Test
+    public void appendCsv() throws Exception {
+        
+        ArrayList<Attribute> atts = new ArrayList<>();
+        atts.add(new Attribute("x"));
+        atts.add(new Attribute("color", Arrays.asList("red", "dark blue")));
+        Instances header = new Instances("colors", atts, 0);
+        
+        Path outpath = getOutPath().resolve("data/colors-append.csv");
+        try (DatasetWriter writer = DatasetWriter.create(outpath, header)) {
+            Instance inst = new DenseInstance(1.0, new double[] { 1.0, 0.0 });
+            inst.setDataset(header);
+            writer.write(inst);
+        }
+        
+        // Weights and sparse syntax are not written, nominal values are quoted
+        try (DatasetWriter writer = DatasetWriter.append(outpath, header)) {
+            Instance weighted = new DenseInstance(2.5, new double[] { 2.5, 1.0 });
+            weighted.setDataset(header);
+            writer.write(weighted);
+            
+            Instance sparse = new SparseInstance(1.0, new double[] { 0.0, 0.0 });
+            sparse.setDataset(header);
+            writer.write(sparse);
+            
+            writer.write(new DenseInstance(1.0, new double[] { 3.0, Utils.missingValue() }));
+        }
+        
+        List<String> lines = Files.readAllLines(outpath);
+        Assert.assertEquals(Arrays.asList("x,color", "1,red", "2.5,'dark blue'", "0,red", "3,?"), lines);
+        Assert.assertEquals(4, Dataset.create(outpath).getInstances().numInstances());
+    }
+    
+    @Test
+    public void streamArffPath() throws Exception {
+        
+        Path inpath = Paths.get("src/test/resources/data/iris.arff");
+        try (Stream<Instance> stream = Dataset.stream(inpath)) {
+            
+            List<Instance> items = stream.collect(Collectors.toList());
+            Assert.assertEquals(150, items.size());
+            
+            Instances header = items.get(0).dataset();
+            Assert.assertEquals(5, header.numAttributes());
+            Assert.assertEquals(4, header.classIndex());
+            Assert.assertSame(header, items.get(149).dataset());
+        }
+    }
+    
+    @Test
+    public void streamCsvPath() throws Exception {
+        
+        Path inpath = Paths.get("src/test/resources/data/sfny.csv");
+        try (Stream<Instance> stream = Dataset.stream(inpath)) {
+            Assert.assertEquals(492, stream.count());
+        }
+    }
+    
     @Test
     public void readCsvFilterWriteArff() throws Exception {
         